@@ -20,6 +20,7 @@ import android.Manifest;
 import android.app.Fragment;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.graphics.Matrix;
 import android.hardware.Camera;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCharacteristics;
@@ -74,8 +75,16 @@ public abstract class CameraActivity extends AppCompatActivity
   private boolean useCamera2API;
   private boolean isProcessingFrame = false;
   private byte[][] yuvBytes = new byte[3][];
+  private ByteBuffer[] yuvPlanes = new ByteBuffer[3];
+  // Wrapper around the legacy camera's preview buffer, rebuilt when the buffer changes.
+  private ByteBuffer luminanceBuffer;
+  // Frames are decimated by this factor in the YUV domain before getRgbBytes() converts them.
+  private int yuvDownscaleFactor = 1;
+  private byte[][] downscaledYuvBytes = new byte[3][];
   private int[] rgbBytes = null;
   private int yRowStride;
+  private int uvRowStride;
+  private int uvPixelStride;
   private Runnable postInferenceCallback;
   private Runnable imageConverter;
 
@@ -173,17 +182,109 @@ public abstract class CameraActivity extends AppCompatActivity
 //    minusImageView.setOnClickListener(this);
   }
 
+  /**
+   * Converts the current frame to ARGB. The result is getRgbFrameWidth() x getRgbFrameHeight()
+   * pixels, which is smaller than the preview if a downscale factor is set. The ARGB buffer is only
+   * allocated on first use, so it costs nothing when frames go straight to the model input.
+   */
   protected int[] getRgbBytes() {
+    if (rgbBytes == null) {
+      rgbBytes = new int[previewWidth * previewHeight];
+    }
     imageConverter.run();
     return rgbBytes;
   }
 
+  /**
+   * Sets the integer factor frames are box filtered and decimated by in the YUV domain before
+   * getRgbBytes() converts them to ARGB.
+   */
+  protected void setYuvDownscaleFactor(final int factor) {
+    yuvDownscaleFactor = Math.max(1, factor);
+    final int width = getRgbFrameWidth();
+    final int height = getRgbFrameHeight();
+    LOGGER.i("Downscaling frames by %d to %dx%d", yuvDownscaleFactor, width, height);
+    downscaledYuvBytes[0] = new byte[width * height];
+    downscaledYuvBytes[1] = new byte[((width + 1) / 2) * ((height + 1) / 2)];
+    downscaledYuvBytes[2] = new byte[downscaledYuvBytes[1].length];
+  }
+
+  protected int getRgbFrameWidth() {
+    return previewWidth / yuvDownscaleFactor;
+  }
+
+  protected int getRgbFrameHeight() {
+    return previewHeight / yuvDownscaleFactor;
+  }
+
+  private void convertDownscaledFrame() {
+    final int width = getRgbFrameWidth();
+    final int height = getRgbFrameHeight();
+    ImageUtils.convertYUV420ToARGB8888(
+        downscaledYuvBytes[0],
+        downscaledYuvBytes[1],
+        downscaledYuvBytes[2],
+        width,
+        height,
+        width,
+        (width + 1) / 2,
+        1,
+        rgbBytes);
+  }
+
+  /**
+   * Converts the current frame straight into a model input tensor, sampling it through
+   * cropToFrameTransform. Unlike getRgbBytes() this never produces the full resolution ARGB frame.
+   */
+  protected void convertToInputTensor(
+      final Matrix cropToFrameTransform,
+      final int inputSize,
+      final float[] normalizationTable,
+      final ByteBuffer out) {
+    if (useCamera2API) {
+      ImageUtils.convertYUV420ToInputTensor(
+          yuvPlanes[0],
+          yuvPlanes[1],
+          yuvPlanes[2],
+          previewWidth,
+          previewHeight,
+          yRowStride,
+          uvRowStride,
+          uvPixelStride,
+          cropToFrameTransform,
+          inputSize,
+          normalizationTable,
+          out);
+    } else {
+      // The luminance buffer wraps the whole NV21 frame.
+      ImageUtils.convertYUV420SPToInputTensor(
+          getLuminance(),
+          previewWidth,
+          previewHeight,
+          cropToFrameTransform,
+          inputSize,
+          normalizationTable,
+          out);
+    }
+  }
+
   protected int getLuminanceStride() {
     return yRowStride;
   }
 
-  protected byte[] getLuminance() {
-    return yuvBytes[0];
+  /**
+   * Returns the luminance plane of the current frame without copying it. With the camera2 API this
+   * is the image's own buffer, so it must only be read, with absolute gets, and only before
+   * readyForNextImage().
+   */
+  protected ByteBuffer getLuminance() {
+    if (useCamera2API) {
+      return yuvPlanes[0];
+    }
+    if (luminanceBuffer == null || luminanceBuffer.array() != yuvBytes[0]) {
+      luminanceBuffer = ByteBuffer.wrap(yuvBytes[0]);
+    }
+    return luminanceBuffer;
   }
 
   /** Callback for android.hardware.Camera API */
@@ -196,11 +297,10 @@ public abstract class CameraActivity extends AppCompatActivity
 
     try {
       // Initialize the storage bitmaps once when the resolution is known.
-      if (rgbBytes == null) {
+      if (previewWidth == 0) {
         Camera.Size previewSize = camera.getParameters().getPreviewSize();
         previewHeight = previewSize.height;
         previewWidth = previewSize.width;
-        rgbBytes = new int[previewWidth * previewHeight];
         onPreviewSizeChosen(new Size(previewSize.width, previewSize.height), 90);
       }
     } catch (final Exception e) {
@@ -216,7 +316,19 @@ public abstract class CameraActivity extends AppCompatActivity
         new Runnable() {
           @Override
           public void run() {
-            ImageUtils.convertYUV420SPToARGB8888(bytes, previewWidth, previewHeight, rgbBytes);
+            if (yuvDownscaleFactor > 1) {
+              ImageUtils.downscaleYUV420SP(
+                  bytes,
+                  previewWidth,
+                  previewHeight,
+                  yuvDownscaleFactor,
+                  downscaledYuvBytes[0],
+                  downscaledYuvBytes[1],
+                  downscaledYuvBytes[2]);
+              convertDownscaledFrame();
+            } else {
+              ImageUtils.convertYUV420SPToARGB8888(bytes, previewWidth, previewHeight, rgbBytes);
+            }
           }
         };
 
@@ -238,9 +350,6 @@ public abstract class CameraActivity extends AppCompatActivity
     if (previewWidth == 0 || previewHeight == 0) {
       return;
     }
-    if (rgbBytes == null) {
-      rgbBytes = new int[previewWidth * previewHeight];
-    }
     try {
       final Image image = reader.acquireLatestImage();
 
@@ -255,19 +364,39 @@ public abstract class CameraActivity extends AppCompatActivity
       isProcessingFrame = true;
       Trace.beginSection("imageAvailable");
       final Plane[] planes = image.getPlanes();
-      fillBytes(planes, yuvBytes);
+      // The converters read the planes in place; nothing is copied to the heap per frame.
+      for (int i = 0; i < planes.length; ++i) {
+        yuvPlanes[i] = planes[i].getBuffer();
+      }
       yRowStride = planes[0].getRowStride();
-      final int uvRowStride = planes[1].getRowStride();
-      final int uvPixelStride = planes[1].getPixelStride();
+      uvRowStride = planes[1].getRowStride();
+      uvPixelStride = planes[1].getPixelStride();
 
       imageConverter =
           new Runnable() {
             @Override
             public void run() {
+              if (yuvDownscaleFactor > 1) {
+                ImageUtils.downscaleYUV420(
+                    yuvPlanes[0],
+                    yuvPlanes[1],
+                    yuvPlanes[2],
+                    previewWidth,
+                    previewHeight,
+                    yRowStride,
+                    uvRowStride,
+                    uvPixelStride,
+                    yuvDownscaleFactor,
+                    downscaledYuvBytes[0],
+                    downscaledYuvBytes[1],
+                    downscaledYuvBytes[2]);
+                convertDownscaledFrame();
+                return;
+              }
               ImageUtils.convertYUV420ToARGB8888(
-                  yuvBytes[0],
-                  yuvBytes[1],
-                  yuvBytes[2],
+                  yuvPlanes[0],
+                  yuvPlanes[1],
+                  yuvPlanes[2],
                   previewWidth,
                   previewHeight,
                   yRowStride,
@@ -282,6 +411,9 @@ public abstract class CameraActivity extends AppCompatActivity
             @Override
             public void run() {
               image.close();
+              for (int i = 0; i < yuvPlanes.length; ++i) {
+                yuvPlanes[i] = null;
+              }
               isProcessingFrame = false;
             }
           };
@@ -464,19 +596,6 @@ public abstract class CameraActivity extends AppCompatActivity
     getFragmentManager().beginTransaction().replace(R.id.container, fragment).commit();
   }
 
-  protected void fillBytes(final Plane[] planes, final byte[][] yuvBytes) {
-    // Because of the variable row stride it's not possible to know in
-    // advance the actual necessary dimensions of the yuv planes.
-    for (int i = 0; i < planes.length; ++i) {
-      final ByteBuffer buffer = planes[i].getBuffer();
-      if (yuvBytes[i] == null) {
-        LOGGER.d("Initializing buffer %d at size %d", i, buffer.capacity());
-        yuvBytes[i] = new byte[buffer.capacity()];
-      }
-      buffer.get(yuvBytes[i]);
-    }
-  }
-
   public boolean isDebug() {
     return debug;
   }
@@ -30,7 +30,6 @@ import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Paint.Style;
-import android.graphics.RectF;
 import android.graphics.Typeface;
 import android.location.Address;
 import android.location.Geocoder;
@@ -63,18 +62,26 @@ import com.google.firebase.database.ValueEventListener;
 
 import java.io.IOException;
 import java.text.NumberFormat;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 
 import org.tensorflow.lite.examples.detection.customview.OverlayView;
 import org.tensorflow.lite.examples.detection.customview.OverlayView.DrawCallback;
+import org.tensorflow.lite.examples.detection.customview.RenderThreadOverlayView;
+import org.tensorflow.lite.examples.detection.customview.TrackingOverlay;
 import org.tensorflow.lite.examples.detection.env.BorderedText;
 import org.tensorflow.lite.examples.detection.env.ImageUtils;
 import org.tensorflow.lite.examples.detection.env.Logger;
+import org.tensorflow.lite.examples.detection.env.MotionGate;
+import org.tensorflow.lite.examples.detection.env.SharpnessGate;
 import org.tensorflow.lite.examples.detection.tflite.Classifier;
+import org.tensorflow.lite.examples.detection.tflite.DetectionBatch;
+import org.tensorflow.lite.examples.detection.tflite.SsdAnchorOutputDecoder;
 import org.tensorflow.lite.examples.detection.tflite.TFLiteObjectDetectionAPIModel;
 import org.tensorflow.lite.examples.detection.tracking.MultiBoxTracker;
+import org.tensorflow.lite.examples.detection.tracking.OpticalFlowTracker;
+import org.tensorflow.lite.examples.detection.tracking.SignConsensus;
 
 import static android.location.Geocoder.isPresent;
 
@@ -88,21 +95,86 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
   // Configuration values for the prepackaged SSD model.
   private static final int TF_OD_API_INPUT_SIZE = 512;
   private static final boolean TF_OD_API_IS_QUANTIZED = true;
+  // Input normalization of float models.
+  private static final float TF_OD_API_IMAGE_MEAN = 128.0f;
+  private static final float TF_OD_API_IMAGE_STD = 128.0f;
   private static final String TF_OD_API_MODEL_FILE = "speedsign.tflite";
+  // False for graphs exported without the TFLite_Detection_PostProcess op, whose raw box encodings
+  // and class logits are then decoded against the ssd_mobilenet anchors in Java.
+  private static final boolean TF_OD_API_HAS_POSTPROCESS_OP = true;
   private static final String TF_OD_API_LABELS_FILE = "file:///android_asset/speedsign.txt";
   private static final DetectorMode MODE = DetectorMode.TF_OD_API;
   // Minimum detection confidence to track a detection.
   private static final float MINIMUM_CONFIDENCE_TF_OD_API = 0.8f;
+  // Maximum number of detections decoded per frame.
+  private static final int MAX_RESULTS_TF_OD_API = 10;
+  // Non-max suppression applied by the tracker before detections are acted on.
+  private static final float NMS_IOU_THRESHOLD = 0.5f;
+  private static final boolean NMS_CLASS_AWARE = true;
+  // Soft-NMS decays the score of overlapping detections instead of dropping them outright.
+  private static final boolean USE_SOFT_NMS = false;
+  private static final float SOFT_NMS_SIGMA = 0.5f;
+  // Inference runs on every Nth frame; the tracker predicts boxes on the frames in between.
+  private static final int DETECTION_INTERVAL = 3;
+  // Between detections, boxes follow pyramidal Lucas-Kanade optical flow on the luminance plane,
+  // which is box-filtered down by OPTICAL_FLOW_SCALE first.
+  private static final boolean USE_OPTICAL_FLOW = true;
+  private static final int OPTICAL_FLOW_SCALE = 2;
+  private static final int OPTICAL_FLOW_LEVELS = 3;
+  private static final int OPTICAL_FLOW_WINDOW_RADIUS = 4;
+  private static final int OPTICAL_FLOW_ITERATIONS = 10;
+  private static final float OPTICAL_FLOW_MIN_EIGENVALUE = 1.0f;
+  private static final float OPTICAL_FLOW_MAX_RESIDUAL = 12.0f;
+  // A track's class counts as a sign once it wins SIGN_CONSENSUS_VOTES of the track's last
+  // SIGN_CONSENSUS_WINDOW detection rounds.
+  private static final int SIGN_CONSENSUS_VOTES = 3;
+  private static final int SIGN_CONSENSUS_WINDOW = 5;
   private static final boolean MAINTAIN_ASPECT = false;
   private static final Size DESIRED_PREVIEW_SIZE = new Size(640, 480);
   private static final boolean SAVE_PREVIEW_BITMAP = false;
+  // How camera frames are converted from YUV to ARGB; see ImageUtils.YuvConversionMode.
+  private static final ImageUtils.YuvConversionMode YUV_CONVERSION_MODE =
+      ImageUtils.YuvConversionMode.BLOCK_2X2;
+  // Number of row bands the YUV to ARGB conversion is split into and run in parallel.
+  private static final int YUV_CONVERSION_BANDS = 4;
+  // If true, camera frames are sampled straight into the model input, skipping the ARGB frame and
+  // the intermediate Bitmaps.
+  private static final boolean USE_FUSED_INPUT_CONVERSION = true;
+  // If true, the ARGB path decimates frames in the YUV domain to the smallest integer multiple of
+  // the model input size before converting them. Has no effect on the fused conversion.
+  private static final boolean DOWNSCALE_YUV_FRAME = true;
+  // Skips inference on frames whose subsampled luminance barely differs from the last processed
+  // frame, keeping the tracker's previous results on screen instead.
+  private static final boolean USE_MOTION_GATE = true;
+  private static final int MOTION_GATE_SAMPLE_STEP = 8;
+  // Mean absolute luminance difference, in levels, that counts as motion.
+  private static final float MOTION_GATE_THRESHOLD = 3.0f;
+  private static final int MOTION_GATE_MAX_SKIPPED_FRAMES = 15;
+  // Skips inference on motion blurred frames, judged by the variance of the Laplacian of a
+  // subsampled central region of the luminance plane.
+  private static final boolean USE_SHARPNESS_GATE = true;
+  private static final int SHARPNESS_GATE_SAMPLE_STEP = 2;
+  private static final float SHARPNESS_GATE_REGION = 0.5f;
+  private static final float SHARPNESS_GATE_THRESHOLD = 100.0f;
+  // After this many blurred frames in a row, the sharpest following frame is taken anyway.
+  private static final int SHARPNESS_GATE_LOOKAHEAD_FRAMES = 3;
+  // After this many skipped frames in a row, the next frame is taken however blurred it is.
+  private static final int SHARPNESS_GATE_MAX_SKIPPED_FRAMES = 15;
+  // Draws the tracked boxes on a dedicated render thread and surface instead of the UI thread.
+  private static final boolean USE_RENDER_THREAD_OVERLAY = false;
   private static final float TEXT_SIZE_DIP = 10;
-  OverlayView trackingOverlay;
+  TrackingOverlay trackingOverlay;
   private Integer sensorOrientation;
 
   private Classifier detector;
+  private List<String> labels;
+  // Detections of the frame being processed, reused on every frame.
+  private final DetectionBatch detections = new DetectionBatch(MAX_RESULTS_TF_OD_API);
 
   private long lastProcessingTimeMs;
+  // Timestamp of the last frame handed to the detector. Gated frames do not count, so a blurred
+  // or static keyframe is retried on the next frame.
+  private long lastDetectionTimestamp = -DETECTION_INTERVAL;
   private Bitmap rgbFrameBitmap = null;
   private Bitmap croppedBitmap = null;
   private Bitmap cropCopyBitmap = null;
@@ -116,18 +188,38 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
   private MultiBoxTracker tracker;
 
+  private MotionGate motionGate;
+  private SharpnessGate sharpnessGate;
+  private OpticalFlowTracker opticalFlow;
+  private SignConsensus signConsensus;
+  // Tracks matched in the last detection round, handed from the tracker to signConsensus.
+  private final int[] roundTrackIds = new int[MultiBoxTracker.MAX_TRACKS];
+  private final int[] roundClassIds = new int[MultiBoxTracker.MAX_TRACKS];
+  private final float[] roundConfidences = new float[MultiBoxTracker.MAX_TRACKS];
+  // Classes confirmed during the current detection round, handed to the UI thread in one post.
+  private final int[] roundConfirmedSigns = new int[MultiBoxTracker.MAX_TRACKS];
+  private int roundConfirmedSignCount;
+
   private BorderedText borderedText;
 
   TextView tvSpeed;
   TextView tvAddress;
 
-  String prev_sign_text = "";
+  // Class id of the last reported sign, or -1 before the first one. UI thread only.
+  int prevSignClassId = -1;
+  // Class ids of the last four reported signs, newest first, shown in tv_1 to tv_4.
+  final int[] signHistory = {-1, -1, -1, -1};
+  // Toast of every class id, inflated once per sign layout and reused for every report.
+  private Toast[] signToasts;
+  // Whether a class id has a non-empty label and so counts as a sign.
+  private boolean[] isSignClass;
   boolean showToast = false;
 
   TextView tv_1;
   TextView tv_2;
   TextView tv_3;
   TextView tv_4;
+  private TextView[] historyViews;
 
   DetectorActivity activity;
 
@@ -143,6 +235,41 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     borderedText.setTypeface(Typeface.MONOSPACE);
 
     tracker = new MultiBoxTracker(this);
+    motionGate =
+        new MotionGate(
+            MOTION_GATE_SAMPLE_STEP, MOTION_GATE_THRESHOLD, MOTION_GATE_MAX_SKIPPED_FRAMES);
+    sharpnessGate =
+        new SharpnessGate(
+            SHARPNESS_GATE_SAMPLE_STEP,
+            SHARPNESS_GATE_REGION,
+            SHARPNESS_GATE_THRESHOLD,
+            SHARPNESS_GATE_LOOKAHEAD_FRAMES,
+            SHARPNESS_GATE_MAX_SKIPPED_FRAMES);
+    signConsensus =
+        new SignConsensus(
+            MultiBoxTracker.MAX_TRACKS,
+            SIGN_CONSENSUS_VOTES,
+            SIGN_CONSENSUS_WINDOW,
+            new SignConsensus.Listener() {
+              @Override
+              public void onSignConfirmed(
+                  final int trackId, final int classId, final float confidence) {
+                LOGGER.i(
+                    "Track %d confirmed as %s (%.2f)", trackId, labels.get(classId), confidence);
+                roundConfirmedSigns[roundConfirmedSignCount++] = classId;
+              }
+            });
+    opticalFlow =
+        new OpticalFlowTracker(
+            OPTICAL_FLOW_SCALE,
+            OPTICAL_FLOW_LEVELS,
+            OPTICAL_FLOW_WINDOW_RADIUS,
+            OPTICAL_FLOW_ITERATIONS,
+            OPTICAL_FLOW_MIN_EIGENVALUE,
+            OPTICAL_FLOW_MAX_RESIDUAL);
+
+    ImageUtils.setYuvConversionMode(YUV_CONVERSION_MODE);
+    ImageUtils.setYuvConversionBands(YUV_CONVERSION_BANDS);
 
     int cropSize = TF_OD_API_INPUT_SIZE;
 
@@ -153,7 +280,25 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
               TF_OD_API_MODEL_FILE,
               TF_OD_API_LABELS_FILE,
               TF_OD_API_INPUT_SIZE,
-              TF_OD_API_IS_QUANTIZED);
+              TF_OD_API_IS_QUANTIZED,
+              TF_OD_API_IMAGE_MEAN,
+              TF_OD_API_IMAGE_STD,
+              TF_OD_API_HAS_POSTPROCESS_OP
+                  ? null
+                  : new SsdAnchorOutputDecoder(
+                      SsdAnchorOutputDecoder.generateMobileNetSsdAnchors(TF_OD_API_INPUT_SIZE),
+                      true));
+      detector.setMinimumConfidence(MINIMUM_CONFIDENCE_TF_OD_API);
+      detector.setMaxResults(MAX_RESULTS_TF_OD_API);
+      labels = detector.getLabels();
+      tracker.setLabels(labels);
+      tracker.setNonMaxSuppression(
+          NMS_IOU_THRESHOLD,
+          NMS_CLASS_AWARE,
+          USE_SOFT_NMS,
+          SOFT_NMS_SIGMA,
+          MINIMUM_CONFIDENCE_TF_OD_API);
+      buildSignTables();
       cropSize = TF_OD_API_INPUT_SIZE;
     } catch (final IOException e) {
       e.printStackTrace();
@@ -171,20 +316,42 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     sensorOrientation = rotation - getScreenOrientation();
     LOGGER.i("Camera orientation relative to screen canvas: %d", sensorOrientation);
 
+    if (DOWNSCALE_YUV_FRAME && !USE_FUSED_INPUT_CONVERSION) {
+      setYuvDownscaleFactor(
+          ImageUtils.getYuvDownscaleFactor(previewWidth, previewHeight, cropSize));
+    }
+    final int rgbFrameWidth = getRgbFrameWidth();
+    final int rgbFrameHeight = getRgbFrameHeight();
+
     LOGGER.i("Initializing at size %dx%d", previewWidth, previewHeight);
-    rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
-    croppedBitmap = Bitmap.createBitmap(cropSize, cropSize, Config.ARGB_8888);
+    if (!USE_FUSED_INPUT_CONVERSION) {
+      // The fused conversion samples the camera planes straight into the model input instead.
+      rgbFrameBitmap = Bitmap.createBitmap(rgbFrameWidth, rgbFrameHeight, Config.ARGB_8888);
+      croppedBitmap = Bitmap.createBitmap(cropSize, cropSize, Config.ARGB_8888);
+    }
 
     frameToCropTransform =
         ImageUtils.getTransformationMatrix(
-            previewWidth, previewHeight,
+            rgbFrameWidth, rgbFrameHeight,
             cropSize, cropSize,
             sensorOrientation, MAINTAIN_ASPECT);
 
+    // Results are mapped back to full preview coordinates, which the tracker works in.
     cropToFrameTransform = new Matrix();
     frameToCropTransform.invert(cropToFrameTransform);
-
-    trackingOverlay = (OverlayView) findViewById(R.id.tracking_overlay);
+    cropToFrameTransform.postScale(
+        previewWidth / (float) rgbFrameWidth, previewHeight / (float) rgbFrameHeight);
+
+    final OverlayView overlayView = (OverlayView) findViewById(R.id.tracking_overlay);
+    final RenderThreadOverlayView renderThreadOverlayView =
+        (RenderThreadOverlayView) findViewById(R.id.tracking_render_overlay);
+    if (USE_RENDER_THREAD_OVERLAY) {
+      overlayView.setVisibility(View.GONE);
+      renderThreadOverlayView.setVisibility(View.VISIBLE);
+      trackingOverlay = renderThreadOverlayView;
+    } else {
+      trackingOverlay = overlayView;
+    }
     trackingOverlay.addCallback(
         new DrawCallback() {
           @Override
@@ -195,6 +362,20 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
             }
           }
         });
+    // The overlay repaints only when the tracks change, at most once per display refresh. Dropped
+    // tracks give their consensus slot back at once, before their votes would have expired.
+    tracker.setListener(
+        new MultiBoxTracker.Listener() {
+          @Override
+          public void onTracksChanged() {
+            trackingOverlay.requestRedraw();
+          }
+
+          @Override
+          public void onTrackDropped(final int trackId) {
+            signConsensus.remove(trackId);
+          }
+        });
 
     tracker.setFrameConfiguration(previewWidth, previewHeight, sensorOrientation);
 
@@ -205,6 +386,7 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     tv_2 = findViewById(R.id.tv_2);
     tv_3 = findViewById(R.id.tv_3);
     tv_4 = findViewById(R.id.tv_4);
+    historyViews = new TextView[] {tv_1, tv_2, tv_3, tv_4};
 
     activity = this;
 
@@ -251,29 +433,118 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
   }
 
+  /**
+   * Resolves the toast of every class once, so results are handled by class id alone. Each sign
+   * layout is inflated a single time here, on the UI thread, and its toast reused from then on.
+   */
+  private void buildSignTables() {
+    final int numClasses = labels.size();
+    final int[] signToastLayouts = new int[numClasses];
+    final int[] signToastRootIds = new int[numClasses];
+    isSignClass = new boolean[numClasses];
+    for (int classId = 0; classId < numClasses; ++classId) {
+      final String label = labels.get(classId);
+      isSignClass[classId] = !label.isEmpty();
+      switch (label) {
+        case "100":
+          signToastLayouts[classId] = R.layout.signtoast_100;
+          signToastRootIds[classId] = R.id.speed_sign_100;
+          break;
+        case "120":
+          signToastLayouts[classId] = R.layout.signtoast_120;
+          signToastRootIds[classId] = R.id.speed_sign_120;
+          break;
+        case "90":
+          signToastLayouts[classId] = R.layout.signtoast_90;
+          signToastRootIds[classId] = R.id.speed_sign_90;
+          break;
+        default:
+          signToastLayouts[classId] = R.layout.signtoast_80;
+          signToastRootIds[classId] = R.id.speed_sign_80;
+          break;
+      }
+    }
+
+    final LayoutInflater inflater = getLayoutInflater();
+    signToasts = new Toast[numClasses];
+    for (int classId = 0; classId < numClasses; ++classId) {
+      for (int other = 0; other < classId && signToasts[classId] == null; ++other) {
+        if (signToastLayouts[other] == signToastLayouts[classId]) {
+          signToasts[classId] = signToasts[other];
+        }
+      }
+      if (signToasts[classId] == null) {
+        final View view =
+            inflater.inflate(
+                signToastLayouts[classId], (ViewGroup) findViewById(signToastRootIds[classId]));
+        final Toast toast = new Toast(getApplicationContext());
+        toast.setView(view);
+        signToasts[classId] = toast;
+      }
+    }
+  }
+
   @Override
   protected void processImage() {
     ++timestamp;
     final long currTimestamp = timestamp;
-    trackingOverlay.postInvalidate();
+    advanceTracks(currTimestamp);
 
     // No mutex needed as this method is not reentrant.
     if (computingDetection) {
       readyForNextImage();
       return;
     }
+
+    if (currTimestamp - lastDetectionTimestamp < DETECTION_INTERVAL) {
+      readyForNextImage();
+      return;
+    }
+
+    // Blur is checked first, so that a blurred frame never becomes the motion gate's reference.
+    if (USE_SHARPNESS_GATE
+        && !sharpnessGate.shouldProcess(
+            getLuminance(), previewWidth, previewHeight, getLuminanceStride())) {
+      LOGGER.v("Skipping blurred image %d. %s", currTimestamp, sharpnessGate.getStatString());
+      readyForNextImage();
+      return;
+    }
+
+    if (USE_MOTION_GATE
+        && !motionGate.shouldProcess(
+            getLuminance(), previewWidth, previewHeight, getLuminanceStride())) {
+      LOGGER.v("Skipping static image %d. %s", currTimestamp, motionGate.getStatString());
+      readyForNextImage();
+      return;
+    }
+
     computingDetection = true;
+    lastDetectionTimestamp = currTimestamp;
     LOGGER.i("Preparing image " + currTimestamp + " for detection in bg thread.");
 
-    rgbFrameBitmap.setPixels(getRgbBytes(), 0, previewWidth, 0, 0, previewWidth, previewHeight);
+    if (USE_FUSED_INPUT_CONVERSION) {
+      // cropToFrameTransform maps into full preview coordinates, which the planes are in.
+      convertToInputTensor(
+          cropToFrameTransform,
+          TF_OD_API_INPUT_SIZE,
+          detector.getNormalizationTable(),
+          detector.getInputBuffer());
+
+      readyForNextImage();
+    } else {
+      final int rgbFrameWidth = getRgbFrameWidth();
+      final int rgbFrameHeight = getRgbFrameHeight();
+      rgbFrameBitmap.setPixels(
+          getRgbBytes(), 0, rgbFrameWidth, 0, 0, rgbFrameWidth, rgbFrameHeight);
 
-    readyForNextImage();
+      readyForNextImage();
 
-    final Canvas canvas = new Canvas(croppedBitmap);
-    canvas.drawBitmap(rgbFrameBitmap, frameToCropTransform, null);
-    // For examining the actual TF input.
-    if (SAVE_PREVIEW_BITMAP) {
-      ImageUtils.saveBitmap(croppedBitmap);
+      final Canvas canvas = new Canvas(croppedBitmap);
+      canvas.drawBitmap(rgbFrameBitmap, frameToCropTransform, null);
+      // For examining the actual TF input.
+      if (SAVE_PREVIEW_BITMAP) {
+        ImageUtils.saveBitmap(croppedBitmap);
+      }
     }
 
     runInBackground(
@@ -282,125 +553,126 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
           public void run() {
             LOGGER.i("Running detection on image " + currTimestamp);
             final long startTime = SystemClock.uptimeMillis();
-            final List<Classifier.Recognition> results = detector.recognizeImage(croppedBitmap);
+            if (USE_FUSED_INPUT_CONVERSION) {
+              detector.recognizeInputBuffer(detections);
+            } else {
+              detector.recognizeImage(croppedBitmap, detections);
+            }
             lastProcessingTimeMs = SystemClock.uptimeMillis() - startTime;
-
-            cropCopyBitmap = Bitmap.createBitmap(croppedBitmap);
-            final Canvas canvas = new Canvas(cropCopyBitmap);
-            final Paint paint = new Paint();
-            paint.setColor(Color.RED);
-            paint.setStyle(Style.STROKE);
-            paint.setStrokeWidth(2.0f);
-
-            float minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
-            switch (MODE) {
-              case TF_OD_API:
-                minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
-                break;
+            if (USE_SHARPNESS_GATE) {
+              LOGGER.v(
+                  "Inference took %dms. %s", lastProcessingTimeMs, sharpnessGate.getStatString());
             }
-
-            final List<Classifier.Recognition> mappedRecognitions =
-                new LinkedList<Classifier.Recognition>();
-
-            for (final Classifier.Recognition result : results) {
-              final RectF location = result.getLocation();
-              if (location != null && result.getConfidence() >= minimumConfidence) {
-                canvas.drawRect(location, paint);
-
-                cropToFrameTransform.mapRect(location);
-
-                result.setLocation(location);
-                mappedRecognitions.add(result);
-
-                LayoutInflater inflater = getLayoutInflater();
-                View view = inflater.inflate(R.layout.signtoast_80,
-                        (ViewGroup)findViewById(R.id.speed_sign_80));
-                switch (result.getTitle()) {
-                  case "100":
-                    view = inflater.inflate(R.layout.signtoast_100,
-                            (ViewGroup) findViewById(R.id.speed_sign_100));
-                    break;
-                  case "120":
-                    view = inflater.inflate(R.layout.signtoast_120,
-                            (ViewGroup) findViewById(R.id.speed_sign_120));
-                    break;
-                  case "90":
-                    view = inflater.inflate(R.layout.signtoast_90,
-                            (ViewGroup) findViewById(R.id.speed_sign_90));
-                    break;
-                }
-                Toast toast = new Toast(getApplicationContext());
-                toast.setView(view);
-                if(!result.getTitle().equals("") && !prev_sign_text.equals(result.getTitle())){
-                  toast.show();
-                  showToast = false;
-
-                  tv_4.setText(tv_3.getText());
-                  tv_3.setText(tv_2.getText());
-                  tv_2.setText(tv_1.getText());
-                  tv_1.setText(result.getTitle());
-
-                  if(!tv_1.getText().equals(""))
-                    tv_1.setBackgroundResource(R.drawable.ring_background_1);
-                  if(!tv_2.getText().equals(""))
-                    tv_2.setBackgroundResource(R.drawable.ring_background_1);
-                  if(!tv_3.getText().equals(""))
-                    tv_3.setBackgroundResource(R.drawable.ring_background_1);
-                  if(!tv_4.getText().equals(""))
-                    tv_4.setBackgroundResource(R.drawable.ring_background_1);
-                }
-
-
-
-
-                // Check database on firebase
-                FirebaseDatabase database = FirebaseDatabase.getInstance();
-//                if(((String) tvAddress.getText()).equals(""))
-//                  continue;
-                DatabaseReference mDatabase = database.getReference();
-                if(prev_sign_text.equals("") || !prev_sign_text.equals(result.getTitle()))
-                  mDatabase.child("street_limit_speed").child((String) tvAddress.getText()).setValue(result.getTitle());
-
-                // Read from the database
-                mDatabase.addValueEventListener(new ValueEventListener() {
-                  @Override
-                  public void onDataChange(DataSnapshot dataSnapshot) {
-                    // This method is called once with the initial value and again
-                    // whenever data at this location is updated.
-                    String value = dataSnapshot.getValue(String.class);
-                  }
-
-                  @Override
-                  public void onCancelled(DatabaseError error) {
-                    // Failed to read value
-                    Log.w("FireBase", "Failed to read value.", error.toException());
-                  }
-                });
-
-                prev_sign_text = result.getTitle();
-                showToast = true;
+            LOGGER.v("%s", trackingOverlay.getStatString());
+
+            // Only the bitmap path has a crop to draw the results onto.
+            if (!USE_FUSED_INPUT_CONVERSION) {
+              cropCopyBitmap = Bitmap.createBitmap(croppedBitmap);
+              final Canvas canvas = new Canvas(cropCopyBitmap);
+              final Paint paint = new Paint();
+              paint.setColor(Color.RED);
+              paint.setStyle(Style.STROKE);
+              paint.setStrokeWidth(2.0f);
+
+              final float[] boxes = detections.boxes;
+              for (int i = 0; i < detections.count; ++i) {
+                final int b = i * 4;
+                canvas.drawRect(boxes[b], boxes[b + 1], boxes[b + 2], boxes[b + 3], paint);
               }
             }
-
-            tracker.trackResults(mappedRecognitions, currTimestamp);
-            trackingOverlay.postInvalidate();
+            detections.mapBoxes(cropToFrameTransform);
+            tracker.trackResults(detections, currTimestamp);
+            // Signs are only acted on once their track's class has held for several rounds.
+            final int matchedTracks =
+                tracker.getMatchedTracks(roundTrackIds, roundClassIds, roundConfidences);
+            roundConfirmedSignCount = 0;
+            signConsensus.update(roundTrackIds, roundClassIds, roundConfidences, matchedTracks);
+            final int[] confirmedSigns =
+                Arrays.copyOf(roundConfirmedSigns, roundConfirmedSignCount);
 
             computingDetection = false;
 
+            // Every view change of the round goes to the UI thread in this single post.
             runOnUiThread(
                 new Runnable() {
                   @SuppressLint("ResourceType")
                   @Override
                   public void run() {
                     showFrameInfo(previewWidth + "x" + previewHeight);
-                    showCropInfo(cropCopyBitmap.getWidth() + "x" + cropCopyBitmap.getHeight());
+                    showCropInfo(TF_OD_API_INPUT_SIZE + "x" + TF_OD_API_INPUT_SIZE);
                     showInference(lastProcessingTimeMs + "ms");
+                    for (final int classId : confirmedSigns) {
+                      onSignConfirmed(classId);
+                    }
                   }
                 });
           }
         });
   }
 
+  /**
+   * Shows, records and uploads a sign once its class has been confirmed by {@link SignConsensus}.
+   * Runs on the UI thread.
+   */
+  private void onSignConfirmed(final int classId) {
+    if(isSignClass[classId] && prevSignClassId != classId){
+      signToasts[classId].show();
+      showToast = false;
+
+      signHistory[3] = signHistory[2];
+      signHistory[2] = signHistory[1];
+      signHistory[1] = signHistory[0];
+      signHistory[0] = classId;
+      for (int h = 0; h < signHistory.length; ++h) {
+        if (signHistory[h] >= 0) {
+          historyViews[h].setText(labels.get(signHistory[h]));
+          historyViews[h].setBackgroundResource(R.drawable.ring_background_1);
+        }
+      }
+    }
+
+    // Check database on firebase
+    FirebaseDatabase database = FirebaseDatabase.getInstance();
+//    if(((String) tvAddress.getText()).equals(""))
+//      return;
+    DatabaseReference mDatabase = database.getReference();
+    if(prevSignClassId != classId)
+      mDatabase.child("street_limit_speed").child((String) tvAddress.getText()).setValue(labels.get(classId));
+
+    // Read from the database
+    mDatabase.addValueEventListener(new ValueEventListener() {
+      @Override
+      public void onDataChange(DataSnapshot dataSnapshot) {
+        // This method is called once with the initial value and again
+        // whenever data at this location is updated.
+        String value = dataSnapshot.getValue(String.class);
+      }
+
+      @Override
+      public void onCancelled(DatabaseError error) {
+        // Failed to read value
+        Log.w("FireBase", "Failed to read value.", error.toException());
+      }
+    });
+
+    prevSignClassId = classId;
+    showToast = true;
+  }
+
+  /**
+   * Moves the tracked boxes to the current frame, by optical flow or by prediction alone. Runs on
+   * every frame, so that the flow tracker always holds the previous frame.
+   */
+  private void advanceTracks(final long timestamp) {
+    if (USE_OPTICAL_FLOW) {
+      opticalFlow.nextFrame(getLuminance(), previewWidth, previewHeight, getLuminanceStride());
+      tracker.trackFlow(opticalFlow, timestamp);
+      LOGGER.v("Frame %d. %s", timestamp, opticalFlow.getStatString());
+    } else {
+      tracker.predict(timestamp);
+    }
+  }
+
   @Override
   protected int getLayoutId() {
     return R.layout.tfe_od_camera_connection_fragment_tracking;
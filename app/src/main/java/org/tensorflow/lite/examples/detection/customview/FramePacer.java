@@ -0,0 +1,96 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+
+package org.tensorflow.lite.examples.detection.customview;
+
+import android.os.Handler;
+import android.view.Choreographer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces redraw requests from any thread into at most one frame per display refresh. The frame
+ * runs on the thread of the given handler, at the next vsync after the first pending request.
+ */
+public class FramePacer implements Choreographer.FrameCallback {
+  private final Handler handler;
+  private final Choreographer.FrameCallback target;
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong frames = new AtomicLong();
+  private volatile boolean stopped;
+  // Only touched on the handler's thread, which must have a looper.
+  private Choreographer choreographer;
+
+  private final Runnable scheduleFrame =
+      new Runnable() {
+        @Override
+        public void run() {
+          if (choreographer == null) {
+            choreographer = Choreographer.getInstance();
+          }
+          choreographer.postFrameCallback(FramePacer.this);
+        }
+      };
+
+  /**
+   * @param handler Handler of the thread that frames run on
+   * @param target Called with the vsync time of every frame
+   */
+  public FramePacer(final Handler handler, final Choreographer.FrameCallback target) {
+    this.handler = handler;
+    this.target = target;
+  }
+
+  /** Schedules a frame for the next vsync, unless one is already pending. Safe on any thread. */
+  public void requestFrame() {
+    requests.incrementAndGet();
+    if (!stopped && scheduled.compareAndSet(false, true)) {
+      handler.post(scheduleFrame);
+    }
+  }
+
+  /** Stops running frames, including one that is already scheduled. */
+  public void stop() {
+    stopped = true;
+  }
+
+  @Override
+  public void doFrame(final long frameTimeNanos) {
+    // Cleared first, so a request made while the target draws schedules the next frame.
+    scheduled.set(false);
+    if (stopped) {
+      return;
+    }
+    frames.incrementAndGet();
+    target.doFrame(frameTimeNanos);
+  }
+
+  public long getRequestCount() {
+    return requests.get();
+  }
+
+  public long getFrameCount() {
+    return frames.get();
+  }
+
+  public String getStatString() {
+    final long requested = requests.get();
+    final long drawn = frames.get();
+    return String.format(
+        "Redraws: %d requested, %d drawn, %d coalesced", requested, drawn, requested - drawn);
+  }
+}
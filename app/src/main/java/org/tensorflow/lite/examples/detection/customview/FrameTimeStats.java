@@ -0,0 +1,102 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+
+package org.tensorflow.lite.examples.detection.customview;
+
+/**
+ * Draw times and frame intervals of an overlay, so that overlay implementations can be compared.
+ * Frames are recorded by the thread drawing the overlay and read by any thread.
+ */
+public class FrameTimeStats {
+  // Gaps longer than this many refresh periods mean the overlay was idle, not late.
+  private static final int IDLE_PERIODS = 4;
+
+  private long framePeriodNs = 1000000000L / 60;
+  private long frames;
+  private long totalDrawTimeNs;
+  private long maxDrawTimeNs;
+  private long lastFrameTimeNs = -1;
+  private long intervals;
+  private long totalIntervalNs;
+  private long maxIntervalNs;
+  private long lateFrames;
+
+  /** Sets the display refresh rate that frame intervals are judged against. */
+  public synchronized void setRefreshRate(final float refreshRate) {
+    if (refreshRate > 0) {
+      framePeriodNs = (long) (1000000000L / refreshRate);
+    }
+  }
+
+  /**
+   * Records a frame.
+   *
+   * @param frameTimeNs When the frame started, in {@link System#nanoTime()} time
+   * @param drawTimeNs How long drawing the frame took
+   */
+  public synchronized void onFrame(final long frameTimeNs, final long drawTimeNs) {
+    ++frames;
+    totalDrawTimeNs += drawTimeNs;
+    maxDrawTimeNs = Math.max(maxDrawTimeNs, drawTimeNs);
+    if (lastFrameTimeNs >= 0) {
+      final long interval = frameTimeNs - lastFrameTimeNs;
+      if (interval <= IDLE_PERIODS * framePeriodNs) {
+        ++intervals;
+        totalIntervalNs += interval;
+        maxIntervalNs = Math.max(maxIntervalNs, interval);
+        // A frame more than half a period behind schedule missed at least one vsync.
+        if (2 * interval > 3 * framePeriodNs) {
+          ++lateFrames;
+        }
+      }
+    }
+    lastFrameTimeNs = frameTimeNs;
+  }
+
+  public synchronized long getFrameCount() {
+    return frames;
+  }
+
+  public synchronized long getAverageDrawTimeNs() {
+    return frames > 0 ? totalDrawTimeNs / frames : 0;
+  }
+
+  public synchronized long getLateFrameCount() {
+    return lateFrames;
+  }
+
+  public synchronized void reset() {
+    frames = 0;
+    totalDrawTimeNs = 0;
+    maxDrawTimeNs = 0;
+    lastFrameTimeNs = -1;
+    intervals = 0;
+    totalIntervalNs = 0;
+    maxIntervalNs = 0;
+    lateFrames = 0;
+  }
+
+  public synchronized String getStatString() {
+    return String.format(
+        "Overlay: %d frames, draw avg %dus max %dus, interval avg %.1fms max %.1fms, %d late",
+        frames,
+        getAverageDrawTimeNs() / 1000,
+        maxDrawTimeNs / 1000,
+        intervals > 0 ? totalIntervalNs / 1e6 / intervals : 0.0,
+        maxIntervalNs / 1e6,
+        lateFrames);
+  }
+}
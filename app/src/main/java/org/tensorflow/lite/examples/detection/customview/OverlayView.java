@@ -17,28 +17,71 @@ package org.tensorflow.lite.examples.detection.customview;
 
 import android.content.Context;
 import android.graphics.Canvas;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.AttributeSet;
+import android.view.Choreographer;
+import android.view.Display;
 import android.view.View;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-/** A simple View providing a render callback to other classes. */
-public class OverlayView extends View {
-  private final List<DrawCallback> callbacks = new LinkedList<DrawCallback>();
+/** A simple View providing a render callback to other classes, drawn on the UI thread. */
+public class OverlayView extends View implements TrackingOverlay {
+  // Copy on write, so draw() can iterate without locking while callbacks are added.
+  private final List<DrawCallback> callbacks = new CopyOnWriteArrayList<DrawCallback>();
+  private final FrameTimeStats frameStats = new FrameTimeStats();
+  private final FramePacer framePacer;
 
   public OverlayView(final Context context, final AttributeSet attrs) {
     super(context, attrs);
+    framePacer =
+        new FramePacer(
+            new Handler(Looper.getMainLooper()),
+            new Choreographer.FrameCallback() {
+              @Override
+              public void doFrame(final long frameTimeNanos) {
+                invalidate();
+              }
+            });
   }
 
+  @Override
   public void addCallback(final DrawCallback callback) {
     callbacks.add(callback);
   }
 
   @Override
-  public synchronized void draw(final Canvas canvas) {
+  public void requestRedraw() {
+    framePacer.requestFrame();
+  }
+
+  @Override
+  public FrameTimeStats getFrameStats() {
+    return frameStats;
+  }
+
+  @Override
+  public String getStatString() {
+    return frameStats.getStatString() + ". " + framePacer.getStatString();
+  }
+
+  @Override
+  protected void onAttachedToWindow() {
+    super.onAttachedToWindow();
+    final Display display = getDisplay();
+    if (display != null) {
+      frameStats.setRefreshRate(display.getRefreshRate());
+    }
+  }
+
+  @Override
+  public void draw(final Canvas canvas) {
+    final long startTime = System.nanoTime();
     for (final DrawCallback callback : callbacks) {
       callback.drawCallback(canvas);
     }
+    frameStats.onFrame(startTime, System.nanoTime() - startTime);
   }
 
   /** Interface defining the callback for client classes. */
@@ -0,0 +1,178 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+
+package org.tensorflow.lite.examples.detection.customview;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.PorterDuff;
+import android.graphics.SurfaceTexture;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.AttributeSet;
+import android.view.Choreographer;
+import android.view.Display;
+import android.view.TextureView;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.tensorflow.lite.examples.detection.customview.OverlayView.DrawCallback;
+import org.tensorflow.lite.examples.detection.env.Logger;
+
+/**
+ * A transparent overlay that runs its render callbacks on a dedicated thread and draws them onto
+ * its own surface, at the vsync following each redraw request as seen by that thread's {@link
+ * Choreographer}. Unlike {@link OverlayView} its frames do not wait for work queued on the UI
+ * thread. The thread only runs while the view has a surface, so a hidden overlay costs nothing.
+ */
+public class RenderThreadOverlayView extends TextureView
+    implements TrackingOverlay, TextureView.SurfaceTextureListener, Choreographer.FrameCallback {
+  private static final Logger LOGGER = new Logger();
+
+  private final List<DrawCallback> callbacks = new CopyOnWriteArrayList<DrawCallback>();
+  private final FrameTimeStats frameStats = new FrameTimeStats();
+  // Both only exist while the surface does; created and destroyed on the UI thread.
+  private HandlerThread renderThread;
+  private volatile FramePacer framePacer;
+  // Guards the surface, which the UI thread releases while the render thread may be drawing.
+  private final Object surfaceLock = new Object();
+  private boolean surfaceAvailable;
+
+  public RenderThreadOverlayView(final Context context, final AttributeSet attrs) {
+    super(context, attrs);
+    setOpaque(false);
+    setSurfaceTextureListener(this);
+  }
+
+  @Override
+  public void addCallback(final DrawCallback callback) {
+    callbacks.add(callback);
+  }
+
+  @Override
+  public void requestRedraw() {
+    final FramePacer pacer = framePacer;
+    if (pacer != null) {
+      pacer.requestFrame();
+    }
+  }
+
+  @Override
+  public FrameTimeStats getFrameStats() {
+    return frameStats;
+  }
+
+  @Override
+  public String getStatString() {
+    final FramePacer pacer = framePacer;
+    return pacer != null
+        ? frameStats.getStatString() + ". " + pacer.getStatString()
+        : frameStats.getStatString();
+  }
+
+  @Override
+  protected void onAttachedToWindow() {
+    super.onAttachedToWindow();
+    final Display display = getDisplay();
+    if (display != null) {
+      frameStats.setRefreshRate(display.getRefreshRate());
+    }
+  }
+
+  @Override
+  protected void onDetachedFromWindow() {
+    super.onDetachedFromWindow();
+    // Normally already stopped when the surface was destroyed.
+    stopRenderThread();
+  }
+
+  @Override
+  public void onSurfaceTextureAvailable(
+      final SurfaceTexture surface, final int width, final int height) {
+    synchronized (surfaceLock) {
+      surfaceAvailable = true;
+    }
+    startRenderThread();
+    requestRedraw();
+  }
+
+  @Override
+  public void onSurfaceTextureSizeChanged(
+      final SurfaceTexture surface, final int width, final int height) {
+    requestRedraw();
+  }
+
+  @Override
+  public boolean onSurfaceTextureDestroyed(final SurfaceTexture surface) {
+    // The surface is released once this returns, so wait for a frame being drawn onto it.
+    synchronized (surfaceLock) {
+      surfaceAvailable = false;
+    }
+    stopRenderThread();
+    return true;
+  }
+
+  @Override
+  public void onSurfaceTextureUpdated(final SurfaceTexture surface) {}
+
+  private void startRenderThread() {
+    if (renderThread != null) {
+      return;
+    }
+    renderThread = new HandlerThread("overlay");
+    renderThread.start();
+    framePacer = new FramePacer(new Handler(renderThread.getLooper()), this);
+  }
+
+  private void stopRenderThread() {
+    if (renderThread == null) {
+      return;
+    }
+    framePacer.stop();
+    framePacer = null;
+    renderThread.quitSafely();
+    try {
+      renderThread.join();
+    } catch (final InterruptedException e) {
+      LOGGER.e(e, "Exception!");
+    }
+    renderThread = null;
+  }
+
+  /** Draws a frame on the render thread, as scheduled by {@link #requestRedraw()}. */
+  @Override
+  public void doFrame(final long frameTimeNanos) {
+    final long startTime = System.nanoTime();
+    synchronized (surfaceLock) {
+      if (!surfaceAvailable) {
+        return;
+      }
+      final Canvas canvas = lockCanvas();
+      if (canvas == null) {
+        return;
+      }
+      try {
+        canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        for (final DrawCallback callback : callbacks) {
+          callback.drawCallback(canvas);
+        }
+      } finally {
+        unlockCanvasAndPost(canvas);
+      }
+    }
+    frameStats.onFrame(frameTimeNanos, System.nanoTime() - startTime);
+  }
+}
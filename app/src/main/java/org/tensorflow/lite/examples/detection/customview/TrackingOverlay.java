@@ -0,0 +1,36 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+
+package org.tensorflow.lite.examples.detection.customview;
+
+import org.tensorflow.lite.examples.detection.customview.OverlayView.DrawCallback;
+
+/** A view that tracked objects are drawn onto through {@link DrawCallback}s. */
+public interface TrackingOverlay {
+  void addCallback(DrawCallback callback);
+
+  /**
+   * Asks for the callbacks to be run again because what they draw has changed. The redraw happens
+   * at the next display refresh, and requests made before it are coalesced into it. Safe to call
+   * from any thread.
+   */
+  void requestRedraw();
+
+  FrameTimeStats getFrameStats();
+
+  /** Returns frame time statistics and redraw counts. */
+  String getStatString();
+}
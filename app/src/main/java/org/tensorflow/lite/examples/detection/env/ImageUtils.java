@@ -20,6 +20,10 @@ import android.graphics.Matrix;
 import android.os.Environment;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /** Utility class for manipulating images. */
 public class ImageUtils {
@@ -85,9 +89,107 @@ public class ImageUtils {
     }
   }
 
-  public static void convertYUV420SPToARGB8888(byte[] input, int width, int height, int[] output) {
+  /**
+   * Strategies for converting YUV pixels to ARGB. All strategies produce bit-identical output; they
+   * only differ in how the per-pixel arithmetic is carried out.
+   */
+  public enum YuvConversionMode {
+    /** Integer arithmetic and clamping for every pixel. This is the reference implementation. */
+    ARITHMETIC,
+    /** Precomputed per-channel contribution tables for Y, U and V, followed by a clamp table. */
+    LOOKUP_TABLE,
+    /**
+     * The lookup tables applied to 2x2 blocks, two output rows at a time. The chroma terms shared by
+     * the four pixels of a 4:2:0 block are computed once per block instead of once per pixel.
+     */
+    BLOCK_2X2
+  }
+
+  // The per-channel contributions of YUV2RGB to the 18 bit R, G and B sums, indexed by the raw
+  // eight bit sample value.
+  private static final int[] Y_TABLE = new int[256];
+  private static final int[] V_TO_R_TABLE = new int[256];
+  private static final int[] V_TO_G_TABLE = new int[256];
+  private static final int[] U_TO_G_TABLE = new int[256];
+  private static final int[] U_TO_B_TABLE = new int[256];
+
+  // Maps a channel sum shifted right by 10 bits to its clamped eight bit value. The sums reachable
+  // from eight bit YUV input span [-259, 534] after the shift, which the offset and size cover.
+  private static final int CLAMP_TABLE_OFFSET = 384;
+  private static final int[] CLAMP_TABLE = new int[1024];
+
+  static {
+    for (int i = 0; i < 256; ++i) {
+      Y_TABLE[i] = 1192 * ((i - 16) < 0 ? 0 : (i - 16));
+      V_TO_R_TABLE[i] = 1634 * (i - 128);
+      V_TO_G_TABLE[i] = -833 * (i - 128);
+      U_TO_G_TABLE[i] = -400 * (i - 128);
+      U_TO_B_TABLE[i] = 2066 * (i - 128);
+    }
+    for (int i = 0; i < CLAMP_TABLE.length; ++i) {
+      final int value = i - CLAMP_TABLE_OFFSET;
+      CLAMP_TABLE[i] = value > 255 ? 255 : (value < 0 ? 0 : value);
+    }
+  }
+
+  private static volatile YuvConversionMode yuvConversionMode = YuvConversionMode.ARITHMETIC;
+
+  // Bands shorter than this are not worth handing to another thread.
+  private static final int MIN_ROWS_PER_BAND = 32;
+  // Rows read per bulk transfer when converting straight from plane buffers. Must be even.
+  private static final int STRIP_ROWS = 16;
+  private static volatile int yuvConversionBands = 1;
+  private static ForkJoinPool conversionPool;
+
+  /** Selects the strategy used by the YUV to ARGB converters. */
+  public static void setYuvConversionMode(final YuvConversionMode mode) {
+    yuvConversionMode = mode;
+  }
+
+  public static YuvConversionMode getYuvConversionMode() {
+    return yuvConversionMode;
+  }
+
+  /**
+   * Sets the number of row bands the YUV to ARGB converters split a frame into. Bands are converted
+   * in parallel on a shared work-stealing pool; a value of 1, or a frame too small to give every
+   * band MIN_ROWS_PER_BAND rows, converts serially on the calling thread.
+   */
+  public static void setYuvConversionBands(final int numBands) {
+    yuvConversionBands = Math.max(1, numBands);
+  }
+
+  public static int getYuvConversionBands() {
+    return yuvConversionBands;
+  }
+
+  public static void convertYUV420SPToARGB8888(
+      final byte[] input, final int width, final int height, final int[] output) {
+    convertRows(
+        height,
+        (startRow, endRow) ->
+            convertYUV420SPToARGB8888Rows(input, width, height, output, startRow, endRow));
+  }
+
+  private static void convertYUV420SPToARGB8888Rows(
+      byte[] input, int width, int height, int[] output, int startRow, int endRow) {
+    switch (yuvConversionMode) {
+      case LOOKUP_TABLE:
+        convertYUV420SPToARGB8888Lookup(input, width, height, output, startRow, endRow);
+        break;
+      case BLOCK_2X2:
+        convertYUV420SPToARGB8888Block(input, width, height, output, startRow, endRow);
+        break;
+      default:
+        convertYUV420SPToARGB8888Arithmetic(input, width, height, output, startRow, endRow);
+        break;
+    }
+  }
+
+  private static void convertYUV420SPToARGB8888Arithmetic(
+      byte[] input, int width, int height, int[] output, int startRow, int endRow) {
     final int frameSize = width * height;
-    for (int j = 0, yp = 0; j < height; j++) {
+    for (int j = startRow, yp = startRow * width; j < endRow; j++) {
       int uvp = frameSize + (j >> 1) * width;
       int u = 0;
       int v = 0;
@@ -104,6 +206,60 @@ public class ImageUtils {
     }
   }
 
+  private static void convertYUV420SPToARGB8888Lookup(
+      byte[] input, int width, int height, int[] output, int startRow, int endRow) {
+    final int frameSize = width * height;
+    for (int j = startRow, yp = startRow * width; j < endRow; j++) {
+      int uvp = frameSize + (j >> 1) * width;
+      int u = 0;
+      int v = 0;
+
+      for (int i = 0; i < width; i++, yp++) {
+        int y = 0xff & input[yp];
+        if ((i & 1) == 0) {
+          v = 0xff & input[uvp++];
+          u = 0xff & input[uvp++];
+        }
+
+        output[yp] = YUV2RGBLookup(y, u, v);
+      }
+    }
+  }
+
+  // Expects startRow to be even, which convertRows guarantees.
+  private static void convertYUV420SPToARGB8888Block(
+      byte[] input, int width, int height, int[] output, int startRow, int endRow) {
+    final int frameSize = width * height;
+    final int evenWidth = width & ~1;
+    for (int j = startRow; j < endRow; j += 2) {
+      final boolean hasSecondRow = j + 1 < endRow;
+      final int yp0 = j * width;
+      final int yp1 = yp0 + width;
+      final int uvp = frameSize + (j >> 1) * width;
+
+      for (int i = 0; i < width; i += 2) {
+        final int v = 0xff & input[uvp + i];
+        final int u = 0xff & input[uvp + i + 1];
+        final int rOffset = V_TO_R_TABLE[v];
+        final int gOffset = V_TO_G_TABLE[v] + U_TO_G_TABLE[u];
+        final int bOffset = U_TO_B_TABLE[u];
+        final boolean hasSecondColumn = i < evenWidth;
+
+        output[yp0 + i] = blockPixel(0xff & input[yp0 + i], rOffset, gOffset, bOffset);
+        if (hasSecondColumn) {
+          output[yp0 + i + 1] = blockPixel(0xff & input[yp0 + i + 1], rOffset, gOffset, bOffset);
+        }
+        if (hasSecondRow) {
+          output[yp1 + i] = blockPixel(0xff & input[yp1 + i], rOffset, gOffset, bOffset);
+          if (hasSecondColumn) {
+            output[yp1 + i + 1] =
+                blockPixel(0xff & input[yp1 + i + 1], rOffset, gOffset, bOffset);
+          }
+        }
+      }
+    }
+  }
+
   private static int YUV2RGB(int y, int u, int v) {
     // Adjust and check YUV values
     y = (y - 16) < 0 ? 0 : (y - 16);
@@ -128,18 +284,241 @@ public class ImageUtils {
     return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
   }
 
+  /**
+   * Finishes a pixel of a 2x2 block given the chroma terms of the block, as looked up from the
+   * V_TO_R, V_TO_G + U_TO_G and U_TO_B tables. Equivalent to {@link #YUV2RGBLookup}.
+   */
+  private static int blockPixel(int y, int rOffset, int gOffset, int bOffset) {
+    final int luma = Y_TABLE[y];
+    final int r = CLAMP_TABLE[((luma + rOffset) >> 10) + CLAMP_TABLE_OFFSET];
+    final int g = CLAMP_TABLE[((luma + gOffset) >> 10) + CLAMP_TABLE_OFFSET];
+    final int b = CLAMP_TABLE[((luma + bOffset) >> 10) + CLAMP_TABLE_OFFSET];
+
+    return 0xff000000 | (r << 16) | (g << 8) | b;
+  }
+
+  /**
+   * Table driven equivalent of {@link #YUV2RGB}. Clamping an 18 bit channel sum to
+   * [0, kMaxChannelValue] and then keeping its top eight bits is the same as clamping the sum
+   * shifted right by 10 bits to [0, 255], so a single clamp table serves all three channels.
+   */
+  private static int YUV2RGBLookup(int y, int u, int v) {
+    final int luma = Y_TABLE[y];
+    final int r = CLAMP_TABLE[((luma + V_TO_R_TABLE[v]) >> 10) + CLAMP_TABLE_OFFSET];
+    final int g =
+        CLAMP_TABLE[((luma + V_TO_G_TABLE[v] + U_TO_G_TABLE[u]) >> 10) + CLAMP_TABLE_OFFSET];
+    final int b = CLAMP_TABLE[((luma + U_TO_B_TABLE[u]) >> 10) + CLAMP_TABLE_OFFSET];
+
+    return 0xff000000 | (r << 16) | (g << 8) | b;
+  }
+
   public static void convertYUV420ToARGB8888(
+      final byte[] yData,
+      final byte[] uData,
+      final byte[] vData,
+      final int width,
+      final int height,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int[] out) {
+    convertRows(
+        height,
+        (startRow, endRow) ->
+            convertYUV420ToARGB8888Rows(
+                yData,
+                uData,
+                vData,
+                width,
+                yRowStride,
+                uvRowStride,
+                uvPixelStride,
+                out,
+                startRow,
+                endRow));
+  }
+
+  /**
+   * Same as {@link #convertYUV420ToARGB8888(byte[], byte[], byte[], int, int, int, int, int,
+   * int[])}, reading the planes in place, e.g. straight from the buffers of an {@link
+   * android.media.Image}. Rows are bulk read a strip at a time into small scratch arrays, so the
+   * planes are never copied to the heap as a whole.
+   */
+  public static void convertYUV420ToARGB8888(
+      final ByteBuffer yBuffer,
+      final ByteBuffer uBuffer,
+      final ByteBuffer vBuffer,
+      final int width,
+      final int height,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int[] out) {
+    convertRows(
+        height,
+        (startRow, endRow) ->
+            convertYUV420ToARGB8888Strips(
+                yBuffer.duplicate(),
+                uBuffer.duplicate(),
+                vBuffer.duplicate(),
+                width,
+                yRowStride,
+                uvRowStride,
+                uvPixelStride,
+                out,
+                startRow,
+                endRow));
+  }
+
+  // Expects startRow to be even, which convertRows guarantees.
+  private static void convertYUV420ToARGB8888Strips(
+      ByteBuffer yBuffer,
+      ByteBuffer uBuffer,
+      ByteBuffer vBuffer,
+      int width,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int[] out,
+      int startRow,
+      int endRow) {
+    final StripScratch scratch = STRIP_SCRATCH.get();
+    scratch.ensureCapacity(STRIP_ROWS, width, yRowStride, uvRowStride);
+    final byte[] yStrip = scratch.y;
+    final byte[] uStrip = scratch.u;
+    final byte[] vStrip = scratch.v;
+    final int[] outStrip = scratch.out;
+
+    for (int j = startRow; j < endRow; j += STRIP_ROWS) {
+      final int rows = Math.min(STRIP_ROWS, endRow - j);
+      readRows(yBuffer, yRowStride * j, yRowStride * rows, yStrip);
+      readRows(uBuffer, uvRowStride * (j >> 1), uvRowStride * ((rows + 1) / 2), uStrip);
+      readRows(vBuffer, uvRowStride * (j >> 1), uvRowStride * ((rows + 1) / 2), vStrip);
+
+      convertYUV420ToARGB8888Rows(
+          yStrip,
+          uStrip,
+          vStrip,
+          width,
+          yRowStride,
+          uvRowStride,
+          uvPixelStride,
+          outStrip,
+          0,
+          rows);
+      System.arraycopy(outStrip, 0, out, j * width, rows * width);
+    }
+  }
+
+  /**
+   * Strip buffers of one conversion thread, kept between frames and grown on first use, so
+   * converting a frame allocates no strips.
+   */
+  private static final class StripScratch {
+    byte[] y = new byte[0];
+    byte[] u = new byte[0];
+    byte[] v = new byte[0];
+    int[] out = new int[0];
+
+    void ensureCapacity(
+        final int rows, final int width, final int yRowStride, final int uvRowStride) {
+      if (y.length < rows * yRowStride) {
+        y = new byte[rows * yRowStride];
+      }
+      if (u.length < ((rows + 1) / 2) * uvRowStride) {
+        u = new byte[((rows + 1) / 2) * uvRowStride];
+        v = new byte[u.length];
+      }
+      if (out.length < rows * width) {
+        out = new int[rows * width];
+      }
+    }
+  }
+
+  private static final ThreadLocal<StripScratch> STRIP_SCRATCH =
+      new ThreadLocal<StripScratch>() {
+        @Override
+        protected StripScratch initialValue() {
+          return new StripScratch();
+        }
+      };
+
+  /**
+   * Bulk reads length bytes starting at offset into dst. The last row of a plane may be shorter
+   * than its row stride, so the read is clipped to the end of the buffer.
+   */
+  private static void readRows(ByteBuffer buffer, int offset, int length, byte[] dst) {
+    buffer.position(offset);
+    buffer.get(dst, 0, Math.min(length, buffer.limit() - offset));
+  }
+
+  private static void convertYUV420ToARGB8888Rows(
       byte[] yData,
       byte[] uData,
       byte[] vData,
       int width,
-      int height,
       int yRowStride,
       int uvRowStride,
       int uvPixelStride,
-      int[] out) {
-    int yp = 0;
-    for (int j = 0; j < height; j++) {
+      int[] out,
+      int startRow,
+      int endRow) {
+    switch (yuvConversionMode) {
+      case LOOKUP_TABLE:
+        convertYUV420ToARGB8888Lookup(
+            yData,
+            uData,
+            vData,
+            width,
+            yRowStride,
+            uvRowStride,
+            uvPixelStride,
+            out,
+            startRow,
+            endRow);
+        break;
+      case BLOCK_2X2:
+        convertYUV420ToARGB8888Block(
+            yData,
+            uData,
+            vData,
+            width,
+            yRowStride,
+            uvRowStride,
+            uvPixelStride,
+            out,
+            startRow,
+            endRow);
+        break;
+      default:
+        convertYUV420ToARGB8888Arithmetic(
+            yData,
+            uData,
+            vData,
+            width,
+            yRowStride,
+            uvRowStride,
+            uvPixelStride,
+            out,
+            startRow,
+            endRow);
+        break;
+    }
+  }
+
+  private static void convertYUV420ToARGB8888Arithmetic(
+      byte[] yData,
+      byte[] uData,
+      byte[] vData,
+      int width,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int[] out,
+      int startRow,
+      int endRow) {
+    int yp = startRow * width;
+    for (int j = startRow; j < endRow; j++) {
       int pY = yRowStride * j;
       int pUV = uvRowStride * (j >> 1);
 
@@ -151,6 +530,534 @@ public class ImageUtils {
     }
   }
 
+  private static void convertYUV420ToARGB8888Lookup(
+      byte[] yData,
+      byte[] uData,
+      byte[] vData,
+      int width,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int[] out,
+      int startRow,
+      int endRow) {
+    int yp = startRow * width;
+    for (int j = startRow; j < endRow; j++) {
+      int pY = yRowStride * j;
+      int pUV = uvRowStride * (j >> 1);
+
+      for (int i = 0; i < width; i++) {
+        int uv_offset = pUV + (i >> 1) * uvPixelStride;
+
+        out[yp++] =
+            YUV2RGBLookup(0xff & yData[pY + i], 0xff & uData[uv_offset], 0xff & vData[uv_offset]);
+      }
+    }
+  }
+
+  // Expects startRow to be even, which convertRows guarantees.
+  private static void convertYUV420ToARGB8888Block(
+      byte[] yData,
+      byte[] uData,
+      byte[] vData,
+      int width,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int[] out,
+      int startRow,
+      int endRow) {
+    final int evenWidth = width & ~1;
+    for (int j = startRow; j < endRow; j += 2) {
+      final boolean hasSecondRow = j + 1 < endRow;
+      final int pY0 = yRowStride * j;
+      final int pY1 = pY0 + yRowStride;
+      final int yp0 = j * width;
+      final int yp1 = yp0 + width;
+      int uv_offset = uvRowStride * (j >> 1);
+
+      for (int i = 0; i < width; i += 2, uv_offset += uvPixelStride) {
+        final int u = 0xff & uData[uv_offset];
+        final int v = 0xff & vData[uv_offset];
+        final int rOffset = V_TO_R_TABLE[v];
+        final int gOffset = V_TO_G_TABLE[v] + U_TO_G_TABLE[u];
+        final int bOffset = U_TO_B_TABLE[u];
+        final boolean hasSecondColumn = i < evenWidth;
+
+        out[yp0 + i] = blockPixel(0xff & yData[pY0 + i], rOffset, gOffset, bOffset);
+        if (hasSecondColumn) {
+          out[yp0 + i + 1] = blockPixel(0xff & yData[pY0 + i + 1], rOffset, gOffset, bOffset);
+        }
+        if (hasSecondRow) {
+          out[yp1 + i] = blockPixel(0xff & yData[pY1 + i], rOffset, gOffset, bOffset);
+          if (hasSecondColumn) {
+            out[yp1 + i + 1] = blockPixel(0xff & yData[pY1 + i + 1], rOffset, gOffset, bOffset);
+          }
+        }
+      }
+    }
+  }
+
+  /** Converts the rows in [startRow, endRow) of a frame. */
+  private interface RowConverter {
+    void convertRows(int startRow, int endRow);
+  }
+
+  /**
+   * Splits a frame into bands of rows and converts them on the shared conversion pool. Every band
+   * writes a disjoint range of the output array, so the bands need no synchronization.
+   */
+  private static final class RowBandTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final RowConverter converter;
+    private final int startRow;
+    private final int endRow;
+    private final int rowsPerBand;
+
+    RowBandTask(
+        final RowConverter converter, final int startRow, final int endRow, final int rowsPerBand) {
+      this.converter = converter;
+      this.startRow = startRow;
+      this.endRow = endRow;
+      this.rowsPerBand = rowsPerBand;
+    }
+
+    @Override
+    protected void compute() {
+      if (endRow - startRow <= rowsPerBand) {
+        converter.convertRows(startRow, endRow);
+        return;
+      }
+      // Split on an even row so that no 2x2 chroma block straddles two bands.
+      final int middleRow = ((startRow + endRow) / 2) & ~1;
+      invokeAll(
+          new RowBandTask(converter, startRow, middleRow, rowsPerBand),
+          new RowBandTask(converter, middleRow, endRow, rowsPerBand));
+    }
+  }
+
+  private static void convertRows(final int height, final RowConverter converter) {
+    final int bands = yuvConversionBands;
+    // Round bands up to an even number of rows, and never go below the minimum band height.
+    final int rowsPerBand = Math.max(MIN_ROWS_PER_BAND, (((height + bands - 1) / bands) + 1) & ~1);
+    if (bands <= 1 || rowsPerBand >= height) {
+      converter.convertRows(0, height);
+      return;
+    }
+    getConversionPool().invoke(new RowBandTask(converter, 0, height, rowsPerBand));
+  }
+
+  private static synchronized ForkJoinPool getConversionPool() {
+    if (conversionPool == null) {
+      conversionPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+    return conversionPool;
+  }
+
+  /**
+   * Returns the largest integer factor a width x height frame can be decimated by while both of its
+   * dimensions stay at least minSize, i.e. without dropping detail a minSize x minSize model input
+   * could still use.
+   */
+  public static int getYuvDownscaleFactor(final int width, final int height, final int minSize) {
+    return Math.max(1, Math.min(width, height) / minSize);
+  }
+
+  /**
+   * Box filters and decimates a YUV420SP (NV21) frame into a planar YUV420 frame. See {@link
+   * #downscaleYUV420}.
+   */
+  public static void downscaleYUV420SP(
+      byte[] input, int width, int height, int factor, byte[] yOut, byte[] uOut, byte[] vOut) {
+    final int frameSize = width * height;
+    final ByteBuffer buffer = ByteBuffer.wrap(input);
+    downscaleYUV(
+        buffer,
+        buffer,
+        buffer,
+        frameSize + 1,
+        frameSize,
+        width,
+        height,
+        width,
+        width,
+        2,
+        factor,
+        yOut,
+        uOut,
+        vOut);
+  }
+
+  /**
+   * Box filters and decimates a YUV_420_888 frame by an integer factor before any RGB conversion,
+   * so that the conversion runs on factor^2 times fewer pixels. The output is a planar YUV420 frame
+   * of (width / factor) x (height / factor) pixels with unpadded rows, whose chroma planes are
+   * ((width / factor + 1) / 2) x ((height / factor + 1) / 2); it can be passed straight to {@link
+   * #convertYUV420ToARGB8888} with a uvPixelStride of 1.
+   */
+  public static void downscaleYUV420(
+      ByteBuffer yBuffer,
+      ByteBuffer uBuffer,
+      ByteBuffer vBuffer,
+      int width,
+      int height,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int factor,
+      byte[] yOut,
+      byte[] uOut,
+      byte[] vOut) {
+    downscaleYUV(
+        yBuffer,
+        uBuffer,
+        vBuffer,
+        0,
+        0,
+        width,
+        height,
+        yRowStride,
+        uvRowStride,
+        uvPixelStride,
+        factor,
+        yOut,
+        uOut,
+        vOut);
+  }
+
+  private static void downscaleYUV(
+      ByteBuffer yData,
+      ByteBuffer uData,
+      ByteBuffer vData,
+      int uOffset,
+      int vOffset,
+      int width,
+      int height,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int factor,
+      byte[] yOut,
+      byte[] uOut,
+      byte[] vOut) {
+    final int dstWidth = width / factor;
+    final int dstHeight = height / factor;
+    boxFilter(yData, 0, 1, yRowStride, width, height, factor, yOut, dstWidth, dstHeight);
+
+    final int uvWidth = (width + 1) / 2;
+    final int uvHeight = (height + 1) / 2;
+    final int dstUvWidth = (dstWidth + 1) / 2;
+    final int dstUvHeight = (dstHeight + 1) / 2;
+    boxFilter(
+        uData,
+        uOffset,
+        uvPixelStride,
+        uvRowStride,
+        uvWidth,
+        uvHeight,
+        factor,
+        uOut,
+        dstUvWidth,
+        dstUvHeight);
+    boxFilter(
+        vData,
+        vOffset,
+        uvPixelStride,
+        uvRowStride,
+        uvWidth,
+        uvHeight,
+        factor,
+        vOut,
+        dstUvWidth,
+        dstUvHeight);
+  }
+
+  /**
+   * Averages factor x factor blocks of a plane, clipping blocks at its right and bottom edges. Each
+   * source row is bulk read once and accumulated into per-column sums, so the plane is read
+   * sequentially and only one division is done per output row. Rows are read through the
+   * position of src, which is restored afterwards; other readers of the camera planes only use
+   * absolute gets, so this needs no duplicate of the buffer.
+   */
+  private static void boxFilter(
+      ByteBuffer src,
+      int offset,
+      int pixelStride,
+      int rowStride,
+      int srcWidth,
+      int srcHeight,
+      int factor,
+      byte[] dst,
+      int dstWidth,
+      int dstHeight) {
+    final int position = src.position();
+    final int rowLength = (srcWidth - 1) * pixelStride + 1;
+    final BoxFilterScratch scratch = BOX_FILTER_SCRATCH.get();
+    scratch.ensureCapacity(rowLength, dstWidth);
+    final byte[] row = scratch.row;
+    final int[] sums = scratch.sums;
+    final int fullColumns = Math.min(dstWidth, srcWidth / factor);
+
+    for (int j = 0, d = 0; j < dstHeight; ++j) {
+      final int top = j * factor;
+      final int bottom = Math.min(top + factor, srcHeight);
+
+      Arrays.fill(sums, 0, dstWidth, 0);
+      for (int y = top; y < bottom; ++y) {
+        readRows(src, offset + y * rowStride, rowLength, row);
+        for (int i = 0, p = 0; i < dstWidth; ++i) {
+          final int right = Math.min((i + 1) * factor, srcWidth);
+          int sum = 0;
+          for (int x = i * factor; x < right; ++x, p += pixelStride) {
+            sum += 0xff & row[p];
+          }
+          sums[i] += sum;
+        }
+      }
+
+      // Fixed point reciprocal of the block size, exact to well under one level for the block
+      // sizes used here.
+      final int rows = bottom - top;
+      final int reciprocal = (1 << 16) / (rows * factor);
+      for (int i = 0; i < fullColumns; ++i, ++d) {
+        dst[d] = (byte) ((sums[i] * reciprocal + (1 << 15)) >> 16);
+      }
+      for (int i = fullColumns; i < dstWidth; ++i, ++d) {
+        final int count = rows * (Math.min((i + 1) * factor, srcWidth) - i * factor);
+        dst[d] = (byte) ((sums[i] + count / 2) / count);
+      }
+    }
+    src.position(position);
+  }
+
+  /**
+   * Row and column sum buffers of one downscaling thread, kept between frames and grown on first
+   * use, so downscaling a frame allocates no scratch arrays.
+   */
+  private static final class BoxFilterScratch {
+    byte[] row = new byte[0];
+    int[] sums = new int[0];
+
+    void ensureCapacity(final int rowLength, final int dstWidth) {
+      if (row.length < rowLength) {
+        row = new byte[rowLength];
+      }
+      if (sums.length < dstWidth) {
+        sums = new int[dstWidth];
+      }
+    }
+  }
+
+  private static final ThreadLocal<BoxFilterScratch> BOX_FILTER_SCRATCH =
+      new ThreadLocal<BoxFilterScratch>() {
+        @Override
+        protected BoxFilterScratch initialValue() {
+          return new BoxFilterScratch();
+        }
+      };
+
+  /**
+   * Converts a YUV420SP (NV21) frame straight into a model input tensor. See {@link
+   * #convertYUV420ToInputTensor}.
+   */
+  public static void convertYUV420SPToInputTensor(
+      byte[] input,
+      int width,
+      int height,
+      Matrix cropToFrameTransform,
+      int inputSize,
+      float[] normalizationTable,
+      ByteBuffer out) {
+    convertYUV420SPToInputTensor(
+        ByteBuffer.wrap(input),
+        width,
+        height,
+        cropToFrameTransform,
+        inputSize,
+        normalizationTable,
+        out);
+  }
+
+  /**
+   * Same as {@link #convertYUV420SPToInputTensor(byte[], int, int, Matrix, int, float[],
+   * ByteBuffer)}, for callers that keep the frame wrapped between calls.
+   */
+  public static void convertYUV420SPToInputTensor(
+      ByteBuffer input,
+      int width,
+      int height,
+      Matrix cropToFrameTransform,
+      int inputSize,
+      float[] normalizationTable,
+      ByteBuffer out) {
+    // NV21 stores interleaved V/U pairs for every 2x2 block after the luminance plane.
+    final int frameSize = width * height;
+    convertYUVToInputTensor(
+        input,
+        input,
+        input,
+        frameSize + 1,
+        frameSize,
+        width,
+        height,
+        width,
+        width,
+        2,
+        cropToFrameTransform,
+        inputSize,
+        normalizationTable,
+        out);
+  }
+
+  /**
+   * Converts a YUV_420_888 frame straight into a model input tensor, without going through an
+   * intermediate ARGB frame or Bitmap. Every pixel of the inputSize x inputSize tensor is sampled
+   * from the nearest source pixel through cropToFrameTransform, which matches drawing the full
+   * frame into the crop with an unfiltered Canvas.drawBitmap. Nothing is allocated per call
+   * beyond the wrappers of the byte[] planes.
+   *
+   * @param cropToFrameTransform Transform from crop to frame coordinates, i.e. the inverse of the
+   *     one returned by {@link #getTransformationMatrix}.
+   * @param inputSize Width and height of the model input.
+   * @param normalizationTable Normalized float value of every channel level, usually the model's
+   *     own table, or null to write one uint8 per channel for a quantized model.
+   * @param out Native order buffer of the model input, filled from position zero in RGB order.
+   */
+  public static void convertYUV420ToInputTensor(
+      byte[] yData,
+      byte[] uData,
+      byte[] vData,
+      int width,
+      int height,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      Matrix cropToFrameTransform,
+      int inputSize,
+      float[] normalizationTable,
+      ByteBuffer out) {
+    convertYUV420ToInputTensor(
+        ByteBuffer.wrap(yData),
+        ByteBuffer.wrap(uData),
+        ByteBuffer.wrap(vData),
+        width,
+        height,
+        yRowStride,
+        uvRowStride,
+        uvPixelStride,
+        cropToFrameTransform,
+        inputSize,
+        normalizationTable,
+        out);
+  }
+
+  /**
+   * Same as {@link #convertYUV420ToInputTensor(byte[], byte[], byte[], int, int, int, int, int,
+   * Matrix, int, float[], ByteBuffer)}, reading the planes in place with absolute gets, e.g.
+   * straight from the buffers of an {@link android.media.Image}.
+   */
+  public static void convertYUV420ToInputTensor(
+      ByteBuffer yBuffer,
+      ByteBuffer uBuffer,
+      ByteBuffer vBuffer,
+      int width,
+      int height,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      Matrix cropToFrameTransform,
+      int inputSize,
+      float[] normalizationTable,
+      ByteBuffer out) {
+    convertYUVToInputTensor(
+        yBuffer,
+        uBuffer,
+        vBuffer,
+        0,
+        0,
+        width,
+        height,
+        yRowStride,
+        uvRowStride,
+        uvPixelStride,
+        cropToFrameTransform,
+        inputSize,
+        normalizationTable,
+        out);
+  }
+
+  private static void convertYUVToInputTensor(
+      ByteBuffer yData,
+      ByteBuffer uData,
+      ByteBuffer vData,
+      int uOffset,
+      int vOffset,
+      int width,
+      int height,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      Matrix cropToFrameTransform,
+      int inputSize,
+      float[] normalizationTable,
+      ByteBuffer out) {
+    final float[] values = MATRIX_VALUES.get();
+    cropToFrameTransform.getValues(values);
+    final float scaleX = values[Matrix.MSCALE_X];
+    final float skewX = values[Matrix.MSKEW_X];
+    final float transX = values[Matrix.MTRANS_X];
+    final float skewY = values[Matrix.MSKEW_Y];
+    final float scaleY = values[Matrix.MSCALE_Y];
+    final float transY = values[Matrix.MTRANS_Y];
+    final boolean isQuantized = normalizationTable == null;
+
+    // Absolute puts into the native order buffer, so no row staging or FloatBuffer view is needed.
+    int o = 0;
+    for (int j = 0; j < inputSize; ++j) {
+      // Sample at pixel centers, stepping along the mapped row one crop pixel at a time.
+      float srcX = scaleX * 0.5f + skewX * (j + 0.5f) + transX;
+      float srcY = skewY * 0.5f + scaleY * (j + 0.5f) + transY;
+
+      for (int i = 0; i < inputSize; ++i) {
+        int x = (int) srcX;
+        int y = (int) srcY;
+        x = x < 0 ? 0 : (x >= width ? width - 1 : x);
+        y = y < 0 ? 0 : (y >= height ? height - 1 : y);
+        srcX += scaleX;
+        srcY += skewY;
+
+        final int uvIndex = uvRowStride * (y >> 1) + (x >> 1) * uvPixelStride;
+        final int pixelValue =
+            YUV2RGBLookup(
+                0xff & yData.get(yRowStride * y + x),
+                0xff & uData.get(uOffset + uvIndex),
+                0xff & vData.get(vOffset + uvIndex));
+
+        if (isQuantized) {
+          out.put(o, (byte) (pixelValue >> 16));
+          out.put(o + 1, (byte) (pixelValue >> 8));
+          out.put(o + 2, (byte) pixelValue);
+          o += 3;
+        } else {
+          out.putFloat(o, normalizationTable[(pixelValue >> 16) & 0xFF]);
+          out.putFloat(o + 4, normalizationTable[(pixelValue >> 8) & 0xFF]);
+          out.putFloat(o + 8, normalizationTable[pixelValue & 0xFF]);
+          o += 12;
+        }
+      }
+    }
+    out.rewind();
+  }
+
+  private static final ThreadLocal<float[]> MATRIX_VALUES =
+      new ThreadLocal<float[]>() {
+        @Override
+        protected float[] initialValue() {
+          return new float[9];
+        }
+      };
+
   /**
    * Returns a transformation matrix from one reference frame into another. Handles cropping (if
    * maintaining aspect ratio is desired) and rotation.
@@ -0,0 +1,135 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.env;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decides per frame whether a camera frame differs enough from the last processed one to be worth
+ * running inference on. Frames are compared on a subsampled grid of the luminance plane by their
+ * mean absolute difference, so a near-identical frame, e.g. while the car is stopped, costs only a
+ * few thousand byte reads.
+ */
+public class MotionGate {
+  private static final Logger LOGGER = new Logger();
+
+  // Distance in pixels between samples in both directions.
+  private final int sampleStep;
+  // Mean absolute luminance difference, in levels, above which a frame is processed.
+  private float threshold;
+  // Frames are processed at least this often, even without motion.
+  private int maxSkippedFrames;
+
+  // Samples of the last processed frame.
+  private byte[] referenceSamples;
+  private byte[] samples;
+  private int consecutiveSkipped;
+  private float lastDifference;
+
+  private long framesProcessed;
+  private long framesSkipped;
+
+  public MotionGate(final int sampleStep, final float threshold, final int maxSkippedFrames) {
+    this.sampleStep = Math.max(1, sampleStep);
+    this.threshold = threshold;
+    this.maxSkippedFrames = maxSkippedFrames;
+  }
+
+  /**
+   * Returns true if the frame should be processed. The frame then becomes the reference later frames
+   * are compared against.
+   *
+   * @param luminance The luminance plane of the frame, read with absolute gets so it can be the
+   *     camera's own buffer.
+   * @param width Width of the frame.
+   * @param height Height of the frame.
+   * @param rowStride Distance in bytes between the starts of two rows of the plane.
+   */
+  public synchronized boolean shouldProcess(
+      final ByteBuffer luminance, final int width, final int height, final int rowStride) {
+    final int columns = (width + sampleStep - 1) / sampleStep;
+    final int rows = (height + sampleStep - 1) / sampleStep;
+    if (samples == null || samples.length != columns * rows) {
+      LOGGER.i("Sampling %dx%d luminance grid", columns, rows);
+      samples = new byte[columns * rows];
+      referenceSamples = null;
+    }
+
+    int s = 0;
+    for (int y = 0; y < height; y += sampleStep) {
+      for (int x = 0, p = y * rowStride; x < width; x += sampleStep, p += sampleStep) {
+        samples[s++] = luminance.get(p);
+      }
+    }
+
+    if (referenceSamples == null) {
+      lastDifference = Float.POSITIVE_INFINITY;
+    } else {
+      long sum = 0;
+      for (int i = 0; i < samples.length; ++i) {
+        sum += Math.abs((samples[i] & 0xff) - (referenceSamples[i] & 0xff));
+      }
+      lastDifference = sum / (float) samples.length;
+    }
+
+    if (lastDifference < threshold && consecutiveSkipped < maxSkippedFrames) {
+      ++consecutiveSkipped;
+      ++framesSkipped;
+      return false;
+    }
+
+    // Keep the samples of this frame as the new reference, reusing the old reference's storage.
+    final byte[] previousReference = referenceSamples;
+    referenceSamples = samples;
+    samples = previousReference != null ? previousReference : new byte[samples.length];
+    consecutiveSkipped = 0;
+    ++framesProcessed;
+    return true;
+  }
+
+  /** Forgets the reference frame, so that the next frame is always processed. */
+  public synchronized void reset() {
+    referenceSamples = null;
+    consecutiveSkipped = 0;
+  }
+
+  public synchronized void setThreshold(final float threshold) {
+    this.threshold = threshold;
+  }
+
+  public synchronized void setMaxSkippedFrames(final int maxSkippedFrames) {
+    this.maxSkippedFrames = maxSkippedFrames;
+  }
+
+  /** Returns the mean absolute difference of the last frame to its reference, in levels. */
+  public synchronized float getLastDifference() {
+    return lastDifference;
+  }
+
+  public synchronized long getFramesProcessed() {
+    return framesProcessed;
+  }
+
+  public synchronized long getFramesSkipped() {
+    return framesSkipped;
+  }
+
+  public synchronized String getStatString() {
+    return String.format(
+        "Motion gate: %d processed, %d skipped, last difference %.2f",
+        framesProcessed, framesSkipped, lastDifference);
+  }
+}
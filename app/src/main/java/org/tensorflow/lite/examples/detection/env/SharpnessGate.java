@@ -0,0 +1,191 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.env;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Scores the sharpness of camera frames and drops blurred ones before inference. The score is the
+ * variance of the 4-neighbour Laplacian over a subsampled central region of the luminance plane:
+ * motion blur removes high frequencies, which flattens the Laplacian and lowers its variance.
+ *
+ * <p>Frames scoring below the threshold are skipped. Once lookaheadFrames frames in a row have
+ * been skipped, the first frame at least as sharp as the lookaheadFrames frames before it is taken
+ * instead, so the sharpest of a blurred stretch still gets processed. After maxSkippedFrames frames
+ * in a row have been skipped the next one is taken regardless, so a scene that stays soft still
+ * gets detections.
+ */
+public class SharpnessGate {
+  // Distance in pixels between samples in both directions.
+  private final int sampleStep;
+  // Fraction of the frame width and height, centered, that is scored.
+  private final float regionFraction;
+  private float threshold;
+  private int lookaheadFrames;
+  private int maxSkippedFrames;
+
+  private int[] samples;
+  private int consecutiveSkipped;
+  // Scores of the last skipped frames, as a ring buffer of lookaheadFrames entries.
+  private float[] skippedScores;
+  private float lastScore;
+
+  private long framesProcessed;
+  private long framesSkipped;
+  private long lastScoreTimeNs;
+  private long totalScoreTimeNs;
+
+  public SharpnessGate(
+      final int sampleStep,
+      final float regionFraction,
+      final float threshold,
+      final int lookaheadFrames,
+      final int maxSkippedFrames) {
+    this.sampleStep = Math.max(1, sampleStep);
+    this.regionFraction = Math.max(0.0f, Math.min(1.0f, regionFraction));
+    this.threshold = threshold;
+    this.maxSkippedFrames = maxSkippedFrames;
+    setLookaheadFrames(lookaheadFrames);
+  }
+
+  /**
+   * Scores the frame and returns true if it should be processed.
+   *
+   * @param luminance The luminance plane of the frame, read with absolute gets so it can be the
+   *     camera's own buffer.
+   * @param width Width of the frame.
+   * @param height Height of the frame.
+   * @param rowStride Distance in bytes between the starts of two rows of the plane.
+   */
+  public synchronized boolean shouldProcess(
+      final ByteBuffer luminance, final int width, final int height, final int rowStride) {
+    final long startTime = System.nanoTime();
+    lastScore = score(luminance, width, height, rowStride);
+    lastScoreTimeNs = System.nanoTime() - startTime;
+    totalScoreTimeNs += lastScoreTimeNs;
+
+    final boolean process =
+        lastScore >= threshold
+            || consecutiveSkipped >= maxSkippedFrames
+            || (consecutiveSkipped >= lookaheadFrames && lastScore >= getRecentBestScore());
+    if (process) {
+      consecutiveSkipped = 0;
+      ++framesProcessed;
+    } else {
+      if (skippedScores.length > 0) {
+        skippedScores[consecutiveSkipped % skippedScores.length] = lastScore;
+      }
+      ++consecutiveSkipped;
+      ++framesSkipped;
+    }
+    return process;
+  }
+
+  /** Returns the best score of the last lookaheadFrames skipped frames. */
+  private float getRecentBestScore() {
+    float best = 0.0f;
+    for (final float score : skippedScores) {
+      best = Math.max(best, score);
+    }
+    return best;
+  }
+
+  /** Returns the variance of the Laplacian over the sampled region of the frame. */
+  public synchronized float score(
+      final ByteBuffer luminance, final int width, final int height, final int rowStride) {
+    final int regionWidth = Math.max(3 * sampleStep, (int) (width * regionFraction));
+    final int regionHeight = Math.max(3 * sampleStep, (int) (height * regionFraction));
+    final int left = Math.max(0, (width - regionWidth) / 2);
+    final int top = Math.max(0, (height - regionHeight) / 2);
+    final int columns = Math.min(width - left, regionWidth) / sampleStep;
+    final int rows = Math.min(height - top, regionHeight) / sampleStep;
+    if (columns < 3 || rows < 3) {
+      return 0.0f;
+    }
+
+    if (samples == null || samples.length < columns * rows) {
+      samples = new int[columns * rows];
+    }
+    for (int j = 0, s = 0; j < rows; ++j) {
+      int p = (top + j * sampleStep) * rowStride + left;
+      for (int i = 0; i < columns; ++i, p += sampleStep) {
+        samples[s++] = luminance.get(p) & 0xff;
+      }
+    }
+
+    long sum = 0;
+    long sumOfSquares = 0;
+    for (int j = 1; j < rows - 1; ++j) {
+      for (int i = 1, s = j * columns + 1; i < columns - 1; ++i, ++s) {
+        final int laplacian =
+            4 * samples[s] - samples[s - 1] - samples[s + 1] - samples[s - columns]
+                - samples[s + columns];
+        sum += laplacian;
+        sumOfSquares += laplacian * laplacian;
+      }
+    }
+    final int count = (rows - 2) * (columns - 2);
+    final float mean = sum / (float) count;
+    return sumOfSquares / (float) count - mean * mean;
+  }
+
+  public synchronized void setThreshold(final float threshold) {
+    this.threshold = threshold;
+  }
+
+  public synchronized void setLookaheadFrames(final int lookaheadFrames) {
+    this.lookaheadFrames = lookaheadFrames;
+    skippedScores = new float[Math.max(0, lookaheadFrames)];
+    consecutiveSkipped = 0;
+  }
+
+  public synchronized void setMaxSkippedFrames(final int maxSkippedFrames) {
+    this.maxSkippedFrames = maxSkippedFrames;
+  }
+
+  public synchronized float getLastScore() {
+    return lastScore;
+  }
+
+  /** Returns how long scoring the last frame took, in nanoseconds. */
+  public synchronized long getLastScoreTimeNs() {
+    return lastScoreTimeNs;
+  }
+
+  /** Returns the mean time spent scoring a frame so far, in nanoseconds. */
+  public synchronized long getAverageScoreTimeNs() {
+    final long frames = framesProcessed + framesSkipped;
+    return frames > 0 ? totalScoreTimeNs / frames : 0;
+  }
+
+  public synchronized long getFramesProcessed() {
+    return framesProcessed;
+  }
+
+  public synchronized long getFramesSkipped() {
+    return framesSkipped;
+  }
+
+  public synchronized String getStatString() {
+    return String.format(
+        "Sharpness gate: %d processed, %d skipped, last score %.1f in %dus (avg %dus)",
+        framesProcessed,
+        framesSkipped,
+        lastScore,
+        lastScoreTimeNs / 1000,
+        getAverageScoreTimeNs() / 1000);
+  }
+}
@@ -17,12 +17,49 @@ package org.tensorflow.lite.examples.detection.tflite;
 
 import android.graphics.Bitmap;
 import android.graphics.RectF;
+import java.nio.ByteBuffer;
 import java.util.List;
 
-/** Generic interface for interacting with different recognition engines. */
+/**
+ * Generic interface for interacting with different recognition engines. Implementations may reuse
+ * the returned list and its results between calls, so results are only valid until the next call.
+ */
 public interface Classifier {
   List<Recognition> recognizeImage(Bitmap bitmap);
 
+  /**
+   * Runs recognition on the current contents of {@link #getInputBuffer()}, for callers that fill
+   * the model input themselves instead of passing a Bitmap.
+   */
+  List<Recognition> recognizeInputBuffer();
+
+  /**
+   * Like {@link #recognizeImage(Bitmap)}, but writes the detections into {@code batch} instead of
+   * returning Recognition objects. Boxes are in model input coordinates.
+   */
+  void recognizeImage(Bitmap bitmap, DetectionBatch batch);
+
+  /**
+   * Like {@link #recognizeInputBuffer()}, but writes the detections into {@code batch} instead of
+   * returning Recognition objects. Boxes are in model input coordinates.
+   */
+  void recognizeInputBuffer(DetectionBatch batch);
+
+  /**
+   * Returns the immutable label table that class ids index into, both those of a {@link
+   * DetectionBatch} and {@link Recognition#getClassId()}.
+   */
+  List<String> getLabels();
+
+  /** Returns the native order buffer the model reads its input from. */
+  ByteBuffer getInputBuffer();
+
+  /**
+   * Returns the normalized input value of every channel level for a float model, or null if the
+   * model is quantized and reads raw uint8 channels.
+   */
+  float[] getNormalizationTable();
+
   void enableStatLogging(final boolean debug);
 
   String getStatString();
@@ -33,7 +70,16 @@ public interface Classifier {
 
   void setUseNNAPI(boolean isChecked);
 
-  /** An immutable result returned by a Classifier describing what was recognized. */
+  /** Results scoring below this are dropped before they are decoded. */
+  void setMinimumConfidence(float minimumConfidence);
+
+  /** Caps the number of results returned per call. */
+  void setMaxResults(int maxResults);
+
+  /**
+   * A result returned by a Classifier describing what was recognized. Classifiers may update and
+   * hand out the same instance again on their next call.
+   */
   public class Recognition {
     /**
      * A unique identifier for what has been recognized. Specific to the class, not the instance of
@@ -41,34 +87,69 @@ public interface Classifier {
      */
     private final String id;
 
+    /** Index of the recognized class in the classifier's label table, or -1 if unknown. */
+    private int classId;
+
     /** Display name for the recognition. */
-    private final String title;
+    private String title;
 
     /**
      * A sortable score for how good the recognition is relative to others. Higher should be better.
      */
-    private final Float confidence;
+    private float confidence;
 
     /** Optional location within the source image for the location of the recognized object. */
     private RectF location;
 
     public Recognition(
-        final String id, final String title, final Float confidence, final RectF location) {
+        final String id, final String title, final float confidence, final RectF location) {
+      this(id, -1, title, confidence, location);
+    }
+
+    public Recognition(
+        final String id,
+        final int classId,
+        final String title,
+        final float confidence,
+        final RectF location) {
       this.id = id;
+      this.classId = classId;
       this.title = title;
       this.confidence = confidence;
       this.location = location;
     }
 
+    /** Overwrites this result in place, so that classifiers can reuse it without allocating. */
+    void update(
+        final int classId,
+        final String title,
+        final float confidence,
+        final float left,
+        final float top,
+        final float right,
+        final float bottom) {
+      this.classId = classId;
+      this.title = title;
+      this.confidence = confidence;
+      if (location == null) {
+        location = new RectF();
+      }
+      location.set(left, top, right, bottom);
+    }
+
     public String getId() {
       return id;
     }
 
+    public int getClassId() {
+      return classId;
+    }
+
     public String getTitle() {
       return title;
     }
 
-    public Float getConfidence() {
+    public float getConfidence() {
       return confidence;
     }
 
@@ -77,7 +158,12 @@ public interface Classifier {
     }
 
     public void setLocation(RectF location) {
-      this.location = location;
+      // Copy into the existing rectangle, which the classifier may keep reusing.
+      if (location == null || this.location == null) {
+        this.location = location == null ? null : new RectF(location);
+      } else {
+        this.location.set(location);
+      }
     }
 
     @Override
@@ -91,9 +177,7 @@ public interface Classifier {
         resultString += title + " ";
       }
 
-      if (confidence != null) {
-        resultString += String.format("(%.1f%%) ", confidence * 100.0f);
-      }
+      resultString += String.format("(%.1f%%) ", confidence * 100.0f);
 
       if (location != null) {
         resultString += location + " ";
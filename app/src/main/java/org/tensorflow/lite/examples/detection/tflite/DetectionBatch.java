@@ -0,0 +1,128 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import android.graphics.Matrix;
+import android.graphics.RectF;
+
+/**
+ * Reusable struct-of-arrays holder for the detections of one frame. Detection {@code i} occupies
+ * index {@code i} of {@link #classIds} and {@link #scores}, and indices {@code 4 * i} to {@code 4 *
+ * i + 3} of {@link #boxes} as left, top, right and bottom. Only the first {@link #count} entries
+ * are valid.
+ */
+public class DetectionBatch {
+  /** Maximum number of detections the batch can hold. */
+  public final int capacity;
+
+  /** Box corners, four floats per detection: left, top, right, bottom. */
+  public final float[] boxes;
+
+  /** Index of each detection's class in the classifier's label table. */
+  public final int[] classIds;
+
+  /** Confidence of each detection. */
+  public final float[] scores;
+
+  /** Number of valid detections. */
+  public int count;
+
+  public DetectionBatch(final int capacity) {
+    this.capacity = capacity;
+    boxes = new float[capacity * 4];
+    classIds = new int[capacity];
+    scores = new float[capacity];
+  }
+
+  public void clear() {
+    count = 0;
+  }
+
+  public boolean isFull() {
+    return count >= capacity;
+  }
+
+  /** Appends a detection. Returns false, leaving the batch unchanged, if the batch is full. */
+  public boolean add(
+      final int classId,
+      final float score,
+      final float left,
+      final float top,
+      final float right,
+      final float bottom) {
+    if (count >= capacity) {
+      return false;
+    }
+    final int b = count * 4;
+    boxes[b] = left;
+    boxes[b + 1] = top;
+    boxes[b + 2] = right;
+    boxes[b + 3] = bottom;
+    classIds[count] = classId;
+    scores[count] = score;
+    ++count;
+    return true;
+  }
+
+  /** Replaces the contents of this batch with those of {@code other}, up to this batch's capacity. */
+  public void copyFrom(final DetectionBatch other) {
+    count = Math.min(other.count, capacity);
+    System.arraycopy(other.boxes, 0, boxes, 0, count * 4);
+    System.arraycopy(other.classIds, 0, classIds, 0, count);
+    System.arraycopy(other.scores, 0, scores, 0, count);
+  }
+
+  /** Copies the box of detection {@code index} into {@code out} and returns it. */
+  public RectF getBox(final int index, final RectF out) {
+    final int b = index * 4;
+    out.set(boxes[b], boxes[b + 1], boxes[b + 2], boxes[b + 3]);
+    return out;
+  }
+
+  /**
+   * Maps every box through {@code transform} in a single mapPoints pass over the box array, treating
+   * each box as its two opposite corners. This matches {@link Matrix#mapRect(RectF)} for the scale,
+   * translation and quarter turn rotation transforms used between crop, frame and screen, but not
+   * for arbitrary rotations or skews.
+   */
+  public void mapBoxes(final Matrix transform) {
+    mapBoxes(transform, boxes, count);
+  }
+
+  /**
+   * Maps the first {@code count} boxes of a left, top, right, bottom array in place, like {@link
+   * #mapBoxes(Matrix)}.
+   */
+  public static void mapBoxes(final Matrix transform, final float[] boxes, final int count) {
+    if (count == 0) {
+      return;
+    }
+    transform.mapPoints(boxes, 0, boxes, 0, count * 2);
+    // A rotation or mirror can swap the corners; restore left <= right and top <= bottom.
+    for (int b = 0; b < count * 4; b += 4) {
+      if (boxes[b] > boxes[b + 2]) {
+        final float left = boxes[b + 2];
+        boxes[b + 2] = boxes[b];
+        boxes[b] = left;
+      }
+      if (boxes[b + 1] > boxes[b + 3]) {
+        final float top = boxes[b + 3];
+        boxes[b + 3] = boxes[b + 1];
+        boxes[b + 1] = top;
+      }
+    }
+  }
+}
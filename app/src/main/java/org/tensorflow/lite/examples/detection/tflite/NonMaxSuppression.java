@@ -0,0 +1,265 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.Arrays;
+
+/**
+ * Non-max suppression over primitive arrays, either greedy or Soft-NMS with a Gaussian penalty.
+ * Boxes are given as left, top, right, bottom, four floats per candidate, as in {@link
+ * DetectionBatch}. An instance keeps its scratch arrays between calls and is not thread safe.
+ */
+public class NonMaxSuppression {
+  private float iouThreshold;
+  private boolean classAware;
+  private boolean soft;
+  private float softSigma = 0.5f;
+  private float softScoreThreshold = 0.0f;
+
+  // Scratch space, grown on demand.
+  private long[] sortKeys = new long[0];
+  private int[] order = new int[0];
+  private float[] areas = new float[0];
+  private float[] softScores = new float[0];
+  private float[] keptBoxes = new float[0];
+  private float[] keptAreas = new float[0];
+  private int[] keptClassIds = new int[0];
+
+  /**
+   * @param iouThreshold Candidates overlapping a kept box by more than this are suppressed
+   * @param classAware If true, only candidates of the same class suppress each other
+   */
+  public NonMaxSuppression(final float iouThreshold, final boolean classAware) {
+    this.iouThreshold = iouThreshold;
+    this.classAware = classAware;
+  }
+
+  public void setIouThreshold(final float iouThreshold) {
+    this.iouThreshold = iouThreshold;
+  }
+
+  public void setClassAware(final boolean classAware) {
+    this.classAware = classAware;
+  }
+
+  /**
+   * Switches to Soft-NMS: instead of being dropped, overlapping candidates have their score
+   * multiplied by exp(-iou^2 / sigma), and are only dropped once it falls below scoreThreshold.
+   */
+  public void setSoft(final boolean soft, final float sigma, final float scoreThreshold) {
+    this.soft = soft;
+    this.softSigma = sigma;
+    this.softScoreThreshold = scoreThreshold;
+  }
+
+  /**
+   * Selects the candidates that survive suppression, best score first.
+   *
+   * @param boxes Candidate boxes, four floats per candidate
+   * @param classIds Candidate class ids
+   * @param scores Candidate scores, which must not be negative
+   * @param count Number of candidates
+   * @param maxOutputs Selection stops once this many candidates are kept
+   * @param keep Receives the indices of the kept candidates
+   * @param keptScores If not null, receives the scores of the kept candidates, which Soft-NMS may
+   *     have lowered
+   * @return The number of kept candidates
+   */
+  public int select(
+      final float[] boxes,
+      final int[] classIds,
+      final float[] scores,
+      final int count,
+      final int maxOutputs,
+      final int[] keep,
+      final float[] keptScores) {
+    final int limit = Math.min(maxOutputs, keep.length);
+    if (count == 0 || limit <= 0) {
+      return 0;
+    }
+    ensureCapacity(count);
+    for (int i = 0; i < count; ++i) {
+      final int b = i * 4;
+      areas[i] =
+          Math.max(0.0f, boxes[b + 2] - boxes[b]) * Math.max(0.0f, boxes[b + 3] - boxes[b + 1]);
+    }
+    return soft
+        ? selectSoft(boxes, classIds, scores, count, limit, keep, keptScores)
+        : selectGreedy(boxes, classIds, scores, count, limit, keep, keptScores);
+  }
+
+  /**
+   * Greedy NMS. Candidates are visited once in score order and each is only compared against the
+   * boxes kept so far, stopping at the first overlap, so the cost grows with candidates times kept
+   * boxes rather than with candidates squared. Kept boxes are copied into contiguous arrays so that
+   * the inner loop reads memory sequentially and rejects other classes without touching the boxes.
+   */
+  private int selectGreedy(
+      final float[] boxes,
+      final int[] classIds,
+      final float[] scores,
+      final int count,
+      final int limit,
+      final int[] keep,
+      final float[] keptScores) {
+    sortByScore(scores, count);
+    final float threshold = iouThreshold;
+    int kept = 0;
+    for (int i = 0; i < count && kept < limit; ++i) {
+      final int candidate = order[i];
+      final int b = candidate * 4;
+      final float left = boxes[b];
+      final float top = boxes[b + 1];
+      final float right = boxes[b + 2];
+      final float bottom = boxes[b + 3];
+      final float area = areas[candidate];
+      final int classId = classIds[candidate];
+      boolean suppressed = false;
+      for (int k = 0, kb = 0; k < kept; ++k, kb += 4) {
+        if (classAware && keptClassIds[k] != classId) {
+          continue;
+        }
+        final float width = Math.min(right, keptBoxes[kb + 2]) - Math.max(left, keptBoxes[kb]);
+        if (width <= 0.0f) {
+          continue;
+        }
+        final float height =
+            Math.min(bottom, keptBoxes[kb + 3]) - Math.max(top, keptBoxes[kb + 1]);
+        if (height <= 0.0f) {
+          continue;
+        }
+        final float intersection = width * height;
+        // intersection / union > threshold, without the division.
+        if (intersection > threshold * (area + keptAreas[k] - intersection)) {
+          suppressed = true;
+          break;
+        }
+      }
+      if (!suppressed) {
+        final int kb = kept * 4;
+        keptBoxes[kb] = left;
+        keptBoxes[kb + 1] = top;
+        keptBoxes[kb + 2] = right;
+        keptBoxes[kb + 3] = bottom;
+        keptAreas[kept] = area;
+        keptClassIds[kept] = classId;
+        if (keptScores != null) {
+          keptScores[kept] = scores[candidate];
+        }
+        keep[kept++] = candidate;
+      }
+    }
+    return kept;
+  }
+
+  /**
+   * Soft-NMS. Scores change as boxes are kept, so every step takes the best remaining candidate and
+   * decays the rest. Candidates in order[] are compacted as they are kept or fall below the score
+   * threshold, so later steps scan fewer of them.
+   */
+  private int selectSoft(
+      final float[] boxes,
+      final int[] classIds,
+      final float[] scores,
+      final int count,
+      final int limit,
+      final int[] keep,
+      final float[] keptScores) {
+    int remaining = 0;
+    for (int i = 0; i < count; ++i) {
+      if (scores[i] >= softScoreThreshold) {
+        softScores[i] = scores[i];
+        order[remaining++] = i;
+      }
+    }
+
+    int kept = 0;
+    while (remaining > 0 && kept < limit) {
+      int best = 0;
+      for (int i = 1; i < remaining; ++i) {
+        if (softScores[order[i]] > softScores[order[best]]) {
+          best = i;
+        }
+      }
+      final int candidate = order[best];
+      order[best] = order[--remaining];
+      if (keptScores != null) {
+        keptScores[kept] = softScores[candidate];
+      }
+      keep[kept++] = candidate;
+
+      for (int i = 0; i < remaining; ) {
+        final int other = order[i];
+        if (!classAware || classIds[other] == classIds[candidate]) {
+          final float iou = iou(boxes, candidate, other);
+          if (iou > 0.0f) {
+            softScores[other] *= (float) Math.exp(-iou * iou / softSigma);
+            if (softScores[other] < softScoreThreshold) {
+              order[i] = order[--remaining];
+              continue;
+            }
+          }
+        }
+        ++i;
+      }
+    }
+    return kept;
+  }
+
+  /**
+   * Sorts the candidate indices into order[] by descending score with a single primitive sort,
+   * packing each non-negative score's bits, which order like the scores themselves, above its index.
+   * Ties keep the lower index first.
+   */
+  private void sortByScore(final float[] scores, final int count) {
+    for (int i = 0; i < count; ++i) {
+      sortKeys[i] =
+          ((long) Float.floatToIntBits(Math.max(0.0f, scores[i])) << 32) | (Integer.MAX_VALUE - i);
+    }
+    Arrays.sort(sortKeys, 0, count);
+    for (int i = 0; i < count; ++i) {
+      order[i] = Integer.MAX_VALUE - (int) sortKeys[count - 1 - i];
+    }
+  }
+
+  private float iou(final float[] boxes, final int a, final int b) {
+    final int ba = a * 4;
+    final int bb = b * 4;
+    final float width = Math.min(boxes[ba + 2], boxes[bb + 2]) - Math.max(boxes[ba], boxes[bb]);
+    if (width <= 0.0f) {
+      return 0.0f;
+    }
+    final float height =
+        Math.min(boxes[ba + 3], boxes[bb + 3]) - Math.max(boxes[ba + 1], boxes[bb + 1]);
+    if (height <= 0.0f) {
+      return 0.0f;
+    }
+    final float intersection = width * height;
+    return intersection / (areas[a] + areas[b] - intersection);
+  }
+
+  private void ensureCapacity(final int count) {
+    if (sortKeys.length < count) {
+      sortKeys = new long[count];
+      order = new int[count];
+      areas = new float[count];
+      softScores = new float[count];
+      keptBoxes = new float[count * 4];
+      keptAreas = new float[count];
+      keptClassIds = new int[count];
+    }
+  }
+}
@@ -0,0 +1,79 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Tensor;
+
+/**
+ * A reusable native order buffer bound to one output tensor. Values are read back as floats,
+ * dequantized with the tensor's scale and zero point if the tensor is uint8.
+ */
+final class OutputBuffer {
+  final ByteBuffer buffer;
+  // View of a float32 tensor's buffer, or null if the tensor is quantized.
+  private final FloatBuffer floats;
+  private final float scale;
+  private final int zeroPoint;
+
+  OutputBuffer(final Tensor tensor) {
+    buffer = ByteBuffer.allocateDirect(tensor.numBytes());
+    buffer.order(ByteOrder.nativeOrder());
+    final DataType dataType = tensor.dataType();
+    if (dataType == DataType.FLOAT32) {
+      floats = buffer.asFloatBuffer();
+      scale = 1.0f;
+      zeroPoint = 0;
+    } else if (dataType == DataType.UINT8) {
+      final Tensor.QuantizationParams params = tensor.quantizationParams();
+      floats = null;
+      scale = params.getScale();
+      zeroPoint = params.getZeroPoint();
+    } else {
+      throw new IllegalArgumentException("Unsupported output tensor type " + dataType);
+    }
+  }
+
+  /** Returns the value at a flat element index. */
+  float get(final int index) {
+    if (floats != null) {
+      return floats.get(index);
+    }
+    return ((buffer.get(index) & 0xFF) - zeroPoint) * scale;
+  }
+
+  /** Returns the raw value at a flat element index, before dequantization. */
+  int getQuantized(final int index) {
+    return buffer.get(index) & 0xFF;
+  }
+
+  /** Maps a real value to the quantized scale, for comparing against raw values. */
+  float quantize(final float value) {
+    return value / scale + zeroPoint;
+  }
+
+  boolean isQuantized() {
+    return floats == null;
+  }
+
+  /** Must be called before every run, since the interpreter writes from the current position. */
+  void rewind() {
+    buffer.rewind();
+  }
+}
@@ -0,0 +1,46 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.Map;
+import org.tensorflow.lite.Interpreter;
+
+/**
+ * Turns the raw output tensors of a detection model into a {@link DetectionBatch}. Implementations
+ * own the buffers the interpreter writes its outputs to, so they can decode them in place.
+ */
+public interface OutputDecoder {
+  /**
+   * Allocates the output buffers for {@code interpreter} and registers them in {@code outputs}, the
+   * output map passed to every run. Called once, after the interpreter is created.
+   */
+  void bind(Interpreter interpreter, Map<Integer, Object> outputs);
+
+  /** Called before every run, to make the bound buffers ready to be written. */
+  void prepareOutputs();
+
+  /**
+   * Decodes the outputs of the last run into {@code batch}, with boxes in model input pixels.
+   *
+   * @param inputSize Width and height of the model input
+   * @param minimumConfidence Detections scoring below this are dropped
+   * @param maxResults Maximum number of detections to write
+   * @param numLabels Number of labels; detections of class ids outside the label table are dropped
+   * @param batch Cleared and filled with the decoded detections
+   */
+  void decode(
+      int inputSize, float minimumConfidence, int maxResults, int numLabels, DetectionBatch batch);
+}
@@ -0,0 +1,148 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.Map;
+import org.tensorflow.lite.Interpreter;
+
+/**
+ * Decodes the four outputs of a model ending in the TFLite_Detection_PostProcess op, which has
+ * already decoded anchors and run non-max suppression: boxes, classes, scores and a count.
+ */
+public class PostProcessOutputDecoder implements OutputDecoder {
+  // Output tensor indices of the TFLite_Detection_PostProcess op.
+  private static final int OUTPUT_LOCATIONS = 0;
+  private static final int OUTPUT_CLASSES = 1;
+  private static final int OUTPUT_SCORES = 2;
+  private static final int OUTPUT_NUM_DETECTIONS = 3;
+
+  // Number of detection slots of the op.
+  private final int numDetections;
+  // If true, outputs are copied into reusable native order buffers and decoded from there, instead
+  // of being marshalled into multidimensional Java arrays on every call.
+  private final boolean useDirectBuffers;
+
+  // outputLocations: array of shape [Batchsize, NUM_DETECTIONS,4]
+  // contains the location of detected boxes
+  private float[][][] outputLocations;
+  // outputClasses: array of shape [Batchsize, NUM_DETECTIONS]
+  // contains the classes of detected boxes
+  private float[][] outputClasses;
+  // outputScores: array of shape [Batchsize, NUM_DETECTIONS]
+  // contains the scores of detected boxes
+  private float[][] outputScores;
+  // numDetections: array of shape [Batchsize]
+  // contains the number of detected boxes
+  private float[] outputNumDetections;
+  // Direct buffers bound to the output tensors, by output index. Null if the arrays above are used.
+  private OutputBuffer[] outputBuffers;
+
+  public PostProcessOutputDecoder(final int numDetections, final boolean useDirectBuffers) {
+    this.numDetections = numDetections;
+    this.useDirectBuffers = useDirectBuffers;
+  }
+
+  @Override
+  public void bind(final Interpreter interpreter, final Map<Integer, Object> outputs) {
+    if (useDirectBuffers) {
+      outputBuffers = new OutputBuffer[4];
+      for (int i = 0; i < outputBuffers.length; ++i) {
+        outputBuffers[i] = new OutputBuffer(interpreter.getOutputTensor(i));
+        outputs.put(i, outputBuffers[i].buffer);
+      }
+    } else {
+      outputLocations = new float[1][numDetections][4];
+      outputClasses = new float[1][numDetections];
+      outputScores = new float[1][numDetections];
+      outputNumDetections = new float[1];
+      outputs.put(OUTPUT_LOCATIONS, outputLocations);
+      outputs.put(OUTPUT_CLASSES, outputClasses);
+      outputs.put(OUTPUT_SCORES, outputScores);
+      outputs.put(OUTPUT_NUM_DETECTIONS, outputNumDetections);
+    }
+  }
+
+  @Override
+  public void prepareOutputs() {
+    if (outputBuffers != null) {
+      for (final OutputBuffer output : outputBuffers) {
+        output.rewind();
+      }
+    }
+  }
+
+  @Override
+  public void decode(
+      final int inputSize,
+      final float minimumConfidence,
+      final int maxResults,
+      final int numLabels,
+      final DetectionBatch batch) {
+    // Show the best detections.
+    // after scaling them back to the input size.
+    // Only the first numDetections slots hold valid detections; the rest are left over padding.
+    // Boxes are only decoded for detections that pass the score threshold.
+    batch.clear();
+    final int validDetections = Math.min(numDetections, getNumDetections());
+    for (int i = 0; i < validDetections && batch.count < maxResults && !batch.isFull(); ++i) {
+      final float score = getScore(i);
+      if (score < minimumConfidence) {
+        continue;
+      }
+      // SSD Mobilenet V1 Model assumes class 0 is background class
+      // in label file and class labels start from 1 to number_of_classes+1,
+      // while outputClasses correspond to class index from 0 to number_of_classes
+      int labelOffset = 1;
+      final int classId = (int) getClassValue(i) + labelOffset;
+      if (classId < 0 || classId >= numLabels) {
+        continue;
+      }
+      // Locations are ymin, xmin, ymax, xmax.
+      batch.add(
+          classId,
+          score,
+          getLocation(i, 1) * inputSize,
+          getLocation(i, 0) * inputSize,
+          getLocation(i, 3) * inputSize,
+          getLocation(i, 2) * inputSize);
+    }
+  }
+
+  private int getNumDetections() {
+    return (int)
+        (outputBuffers != null
+            ? outputBuffers[OUTPUT_NUM_DETECTIONS].get(0)
+            : outputNumDetections[0]);
+  }
+
+  private float getScore(final int detection) {
+    return outputBuffers != null
+        ? outputBuffers[OUTPUT_SCORES].get(detection)
+        : outputScores[0][detection];
+  }
+
+  private float getClassValue(final int detection) {
+    return outputBuffers != null
+        ? outputBuffers[OUTPUT_CLASSES].get(detection)
+        : outputClasses[0][detection];
+  }
+
+  private float getLocation(final int detection, final int coordinate) {
+    return outputBuffers != null
+        ? outputBuffers[OUTPUT_LOCATIONS].get(detection * 4 + coordinate)
+        : outputLocations[0][detection][coordinate];
+  }
+}
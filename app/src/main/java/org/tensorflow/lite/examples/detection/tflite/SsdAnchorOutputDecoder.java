@@ -0,0 +1,334 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.Map;
+import org.tensorflow.lite.Interpreter;
+
+/**
+ * Decodes the raw outputs of an SSD model exported without the TFLite_Detection_PostProcess op: box
+ * encodings of shape [1, numAnchors, 4] and class logits of shape [1, numAnchors, numClasses].
+ * Anchors are decoded with the Object Detection API's box coder, scored with a sigmoid and reduced
+ * with non-max suppression, all in Java over primitive arrays.
+ */
+public class SsdAnchorOutputDecoder implements OutputDecoder {
+  private static final int OUTPUT_BOX_ENCODINGS = 0;
+  private static final int OUTPUT_CLASS_LOGITS = 1;
+  // Scale factors of the Object Detection API's faster_rcnn_box_coder, used by its SSD configs.
+  private static final float Y_SCALE = 10.0f;
+  private static final float X_SCALE = 10.0f;
+  private static final float H_SCALE = 5.0f;
+  private static final float W_SCALE = 5.0f;
+  // Default IoU threshold of the post-process op.
+  private static final float DEFAULT_IOU_THRESHOLD = 0.6f;
+
+  // Four floats per anchor: y center, x center, height, width, normalized to the input size.
+  private final float[] anchors;
+  private final int numAnchors;
+  // If true, class logit 0 is the background class, as in the label file.
+  private final boolean hasBackgroundClass;
+  private final NonMaxSuppression nonMaxSuppression =
+      new NonMaxSuppression(DEFAULT_IOU_THRESHOLD, true);
+
+  private OutputBuffer boxEncodings;
+  private OutputBuffer classLogits;
+  private int numClasses;
+  // Candidates that pass the score threshold, filled by decode() and reused between calls.
+  private float[] candidateBoxes;
+  private int[] candidateClassIds;
+  private float[] candidateScores;
+  private int[] keep;
+
+  /**
+   * @param anchors Four floats per anchor: y center, x center, height and width, normalized to the
+   *     input size, in the order of the model's outputs. See {@link #generateAnchors}.
+   * @param hasBackgroundClass Whether the first class logit is the background class
+   */
+  public SsdAnchorOutputDecoder(final float[] anchors, final boolean hasBackgroundClass) {
+    this.anchors = anchors;
+    this.numAnchors = anchors.length / 4;
+    this.hasBackgroundClass = hasBackgroundClass;
+  }
+
+  public void setIouThreshold(final float iouThreshold) {
+    nonMaxSuppression.setIouThreshold(iouThreshold);
+  }
+
+  @Override
+  public void bind(final Interpreter interpreter, final Map<Integer, Object> outputs) {
+    final int[] classShape = interpreter.getOutputTensor(OUTPUT_CLASS_LOGITS).shape();
+    if (classShape[1] != numAnchors) {
+      throw new IllegalArgumentException(
+          "Model has " + classShape[1] + " anchors, decoder was given " + numAnchors);
+    }
+    numClasses = classShape[2];
+    boxEncodings = new OutputBuffer(interpreter.getOutputTensor(OUTPUT_BOX_ENCODINGS));
+    classLogits = new OutputBuffer(interpreter.getOutputTensor(OUTPUT_CLASS_LOGITS));
+    outputs.put(OUTPUT_BOX_ENCODINGS, boxEncodings.buffer);
+    outputs.put(OUTPUT_CLASS_LOGITS, classLogits.buffer);
+
+    candidateBoxes = new float[numAnchors * 4];
+    candidateClassIds = new int[numAnchors];
+    candidateScores = new float[numAnchors];
+  }
+
+  @Override
+  public void prepareOutputs() {
+    boxEncodings.rewind();
+    classLogits.rewind();
+  }
+
+  @Override
+  public void decode(
+      final int inputSize,
+      final float minimumConfidence,
+      final int maxResults,
+      final int numLabels,
+      final DetectionBatch batch) {
+    batch.clear();
+    // The sigmoid is monotonic, so candidates are rejected by comparing their best logit against
+    // the logit of the threshold, and the sigmoid and box are only computed for the survivors.
+    final float logitThreshold = logit(minimumConfidence);
+    final boolean quantized = classLogits.isQuantized();
+    final float quantizedThreshold = quantized ? classLogits.quantize(logitThreshold) : 0.0f;
+    final int firstClass = hasBackgroundClass ? 1 : 0;
+    // Label 0 is the background class, whether or not the model has a logit for it.
+    final int labelOffset = hasBackgroundClass ? 0 : 1;
+
+    int numCandidates = 0;
+    for (int anchor = 0, base = 0; anchor < numAnchors; ++anchor, base += numClasses) {
+      int bestClass = -1;
+      float bestLogit;
+      if (quantized) {
+        int bestValue = -1;
+        for (int c = firstClass; c < numClasses; ++c) {
+          final int value = classLogits.getQuantized(base + c);
+          if (value > bestValue) {
+            bestValue = value;
+            bestClass = c;
+          }
+        }
+        if (bestClass < 0 || bestValue < quantizedThreshold) {
+          continue;
+        }
+        bestLogit = classLogits.get(base + bestClass);
+      } else {
+        bestLogit = Float.NEGATIVE_INFINITY;
+        for (int c = firstClass; c < numClasses; ++c) {
+          final float value = classLogits.get(base + c);
+          if (value > bestLogit) {
+            bestLogit = value;
+            bestClass = c;
+          }
+        }
+        if (bestClass < 0 || bestLogit < logitThreshold) {
+          continue;
+        }
+      }
+      final int classId = bestClass + labelOffset;
+      if (classId >= numLabels) {
+        continue;
+      }
+
+      final float score = sigmoid(bestLogit);
+      if (score < minimumConfidence) {
+        // Rounding of the quantized threshold can let a candidate just below it through.
+        continue;
+      }
+      decodeBox(anchor, inputSize, candidateBoxes, numCandidates * 4);
+      candidateClassIds[numCandidates] = classId;
+      candidateScores[numCandidates] = score;
+      ++numCandidates;
+    }
+
+    if (keep == null || keep.length < maxResults) {
+      keep = new int[maxResults];
+    }
+    final int kept =
+        nonMaxSuppression.select(
+            candidateBoxes,
+            candidateClassIds,
+            candidateScores,
+            numCandidates,
+            Math.min(maxResults, batch.capacity),
+            keep,
+            null);
+    for (int i = 0; i < kept; ++i) {
+      final int candidate = keep[i];
+      final int b = candidate * 4;
+      batch.add(
+          candidateClassIds[candidate],
+          candidateScores[candidate],
+          candidateBoxes[b],
+          candidateBoxes[b + 1],
+          candidateBoxes[b + 2],
+          candidateBoxes[b + 3]);
+    }
+  }
+
+  /** Decodes the box of one anchor into left, top, right, bottom in input pixels. */
+  private void decodeBox(
+      final int anchor, final int inputSize, final float[] out, final int offset) {
+    final int a = anchor * 4;
+    final float anchorYCenter = anchors[a];
+    final float anchorXCenter = anchors[a + 1];
+    final float anchorHeight = anchors[a + 2];
+    final float anchorWidth = anchors[a + 3];
+
+    final float yCenter = boxEncodings.get(a) / Y_SCALE * anchorHeight + anchorYCenter;
+    final float xCenter = boxEncodings.get(a + 1) / X_SCALE * anchorWidth + anchorXCenter;
+    final float halfHeight =
+        0.5f * (float) Math.exp(boxEncodings.get(a + 2) / H_SCALE) * anchorHeight;
+    final float halfWidth =
+        0.5f * (float) Math.exp(boxEncodings.get(a + 3) / W_SCALE) * anchorWidth;
+
+    out[offset] = (xCenter - halfWidth) * inputSize;
+    out[offset + 1] = (yCenter - halfHeight) * inputSize;
+    out[offset + 2] = (xCenter + halfWidth) * inputSize;
+    out[offset + 3] = (yCenter + halfHeight) * inputSize;
+  }
+
+  private static float logit(final float probability) {
+    if (probability <= 0.0f) {
+      return Float.NEGATIVE_INFINITY;
+    }
+    if (probability >= 1.0f) {
+      return Float.POSITIVE_INFINITY;
+    }
+    return (float) Math.log(probability / (1.0 - probability));
+  }
+
+  private static float sigmoid(final float x) {
+    return (float) (1.0 / (1.0 + Math.exp(-x)));
+  }
+
+  /**
+   * Generates the anchors of the Object Detection API's multiple_grid_anchor_generator, in the
+   * order an SSD model emits its predictions.
+   *
+   * @param inputSize Width and height of the model input
+   * @param minScale Anchor scale of the first layer
+   * @param maxScale Anchor scale of the last layer
+   * @param strides Feature map stride of every layer
+   * @param aspectRatios Aspect ratios of the anchors at every location
+   * @param interpolatedScaleAspectRatio Aspect ratio of the extra anchor between two layer scales,
+   *     or 0 for none
+   * @param reduceBoxesInLowestLayer If true, the first layer only has three anchors per location
+   * @return Four floats per anchor: y center, x center, height, width
+   */
+  public static float[] generateAnchors(
+      final int inputSize,
+      final float minScale,
+      final float maxScale,
+      final int[] strides,
+      final float[] aspectRatios,
+      final float interpolatedScaleAspectRatio,
+      final boolean reduceBoxesInLowestLayer) {
+    final int numLayers = strides.length;
+    final int maxAnchorsPerLocation = numLayers * (aspectRatios.length + 1) + 3;
+    final float[] layerHeights = new float[maxAnchorsPerLocation];
+    final float[] layerWidths = new float[maxAnchorsPerLocation];
+
+    int numAnchors = 0;
+    float[] anchors = new float[0];
+    int layer = 0;
+    while (layer < numLayers) {
+      // Consecutive layers with the same stride share one feature map.
+      int anchorsPerLocation = 0;
+      int lastSameStrideLayer = layer;
+      while (lastSameStrideLayer < numLayers && strides[lastSameStrideLayer] == strides[layer]) {
+        final float scale = anchorScale(minScale, maxScale, lastSameStrideLayer, numLayers);
+        if (lastSameStrideLayer == 0 && reduceBoxesInLowestLayer) {
+          anchorsPerLocation = addAnchor(layerHeights, layerWidths, anchorsPerLocation, 0.1f, 1.0f);
+          anchorsPerLocation = addAnchor(layerHeights, layerWidths, anchorsPerLocation, scale, 2.0f);
+          anchorsPerLocation = addAnchor(layerHeights, layerWidths, anchorsPerLocation, scale, 0.5f);
+        } else {
+          for (final float aspectRatio : aspectRatios) {
+            anchorsPerLocation =
+                addAnchor(layerHeights, layerWidths, anchorsPerLocation, scale, aspectRatio);
+          }
+          if (interpolatedScaleAspectRatio > 0.0f) {
+            final float nextScale =
+                lastSameStrideLayer == numLayers - 1
+                    ? 1.0f
+                    : anchorScale(minScale, maxScale, lastSameStrideLayer + 1, numLayers);
+            anchorsPerLocation =
+                addAnchor(
+                    layerHeights,
+                    layerWidths,
+                    anchorsPerLocation,
+                    (float) Math.sqrt(scale * nextScale),
+                    interpolatedScaleAspectRatio);
+          }
+        }
+        ++lastSameStrideLayer;
+      }
+
+      final int featureMapSize = (inputSize + strides[layer] - 1) / strides[layer];
+      final int layerAnchors = featureMapSize * featureMapSize * anchorsPerLocation;
+      final float[] grown = new float[(numAnchors + layerAnchors) * 4];
+      System.arraycopy(anchors, 0, grown, 0, numAnchors * 4);
+      anchors = grown;
+      for (int y = 0; y < featureMapSize; ++y) {
+        final float yCenter = (y + 0.5f) / featureMapSize;
+        for (int x = 0; x < featureMapSize; ++x) {
+          final float xCenter = (x + 0.5f) / featureMapSize;
+          for (int i = 0; i < anchorsPerLocation; ++i) {
+            final int a = numAnchors++ * 4;
+            anchors[a] = yCenter;
+            anchors[a + 1] = xCenter;
+            anchors[a + 2] = layerHeights[i];
+            anchors[a + 3] = layerWidths[i];
+          }
+        }
+      }
+      layer = lastSameStrideLayer;
+    }
+    return anchors;
+  }
+
+  /** Generates the anchors of the ssd_mobilenet_v1 and v2 configs of the Object Detection API. */
+  public static float[] generateMobileNetSsdAnchors(final int inputSize) {
+    return generateAnchors(
+        inputSize,
+        0.2f,
+        0.95f,
+        new int[] {16, 32, 64, 128, 256, 512},
+        new float[] {1.0f, 2.0f, 0.5f, 3.0f, 0.3333f},
+        1.0f,
+        true);
+  }
+
+  private static float anchorScale(
+      final float minScale, final float maxScale, final int layer, final int numLayers) {
+    if (numLayers == 1) {
+      return (minScale + maxScale) * 0.5f;
+    }
+    return minScale + (maxScale - minScale) * layer / (numLayers - 1.0f);
+  }
+
+  private static int addAnchor(
+      final float[] heights,
+      final float[] widths,
+      final int index,
+      final float scale,
+      final float aspectRatio) {
+    final float ratioSqrt = (float) Math.sqrt(aspectRatio);
+    heights[index] = scale / ratioSqrt;
+    widths[index] = scale * ratioSqrt;
+    return index + 1;
+  }
+}
@@ -27,48 +27,65 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Vector;
 import org.tensorflow.lite.Interpreter;
 import org.tensorflow.lite.examples.detection.env.Logger;
 
 /**
  * Wrapper for frozen detection models trained using the Tensorflow Object Detection API:
  * github.com/tensorflow/models/tree/master/research/object_detection
+ *
+ * <p>Outputs are turned into detections by an {@link OutputDecoder}: by default the outputs of the
+ * TFLite_Detection_PostProcess op, or raw SSD outputs with {@link SsdAnchorOutputDecoder}.
  */
 public class TFLiteObjectDetectionAPIModel implements Classifier {
   private static final Logger LOGGER = new Logger();
 
   // Only return this many results.
   private static final int NUM_DETECTIONS = 40;
-  // Float model
+  // Default input normalization of float models.
   private static final float IMAGE_MEAN = 128.0f;
   private static final float IMAGE_STD = 128.0f;
   // Number of threads in the java app
   private static final int NUM_THREADS = 4;
+  // If true, outputs of the post-process op are copied into reusable native order buffers and
+  // decoded from there, instead of being marshalled into multidimensional Java arrays.
+  private static final boolean USE_DIRECT_OUTPUT_BUFFERS = true;
   private boolean isModelQuantized;
   // Config values.
   private int inputSize;
+  private float minimumConfidence = 0.0f;
+  private int maxResults = NUM_DETECTIONS;
   // Pre-allocated buffers.
-  private Vector<String> labels = new Vector<String>();
+  // Labels indexed by class id, parsed once in create() and never modified afterwards.
+  private String[] labels;
+  private List<String> labelList;
   private int[] intValues;
-  // outputLocations: array of shape [Batchsize, NUM_DETECTIONS,4]
-  // contains the location of detected boxes
-  private float[][][] outputLocations;
-  // outputClasses: array of shape [Batchsize, NUM_DETECTIONS]
-  // contains the classes of detected boxes
-  private float[][] outputClasses;
-  // outputScores: array of shape [Batchsize, NUM_DETECTIONS]
-  // contains the scores of detected boxes
-  private float[][] outputScores;
-  // numDetections: array of shape [Batchsize]
-  // contains the number of detected boxes
-  private float[] numDetections;
+  // Interleaved RGB bytes of intValues, staged for a bulk put into a quantized model's input.
+  private byte[] rgbValues;
+  // Normalized value of every eight bit channel value, (v - mean) / std, for float models.
+  private float[] normalizationTable;
+  // One row of normalized RGB floats, staged for a bulk put through floatInput.
+  private float[] floatRowValues;
+  private FloatBuffer floatInput;
+  // Decodes the output tensors into detections and owns the buffers they are written to.
+  private OutputDecoder outputDecoder;
+  // Interpreter arguments wrapping the buffers above, built once in create().
+  private Object[] inputArray;
+  private Map<Integer, Object> outputMap;
+  // Results handed out by recognizeInputBuffer(), reused on every call.
+  private Recognition[] recognitionPool;
+  private ArrayList<Recognition> recognitions;
+  // Detections behind the List based API, reused on every call.
+  private DetectionBatch detections;
 
   private ByteBuffer imgData;
 
@@ -103,6 +120,64 @@ public class TFLiteObjectDetectionAPIModel implements Classifier {
       final int inputSize,
       final boolean isQuantized)
       throws IOException {
+    return create(
+        assetManager, modelFilename, labelFilename, inputSize, isQuantized, IMAGE_MEAN, IMAGE_STD);
+  }
+
+  /**
+   * Initializes a native TensorFlow session for classifying images, for models ending in the
+   * TFLite_Detection_PostProcess op.
+   *
+   * @param assetManager The asset manager to be used to load assets.
+   * @param modelFilename The filepath of the model GraphDef protocol buffer.
+   * @param labelFilename The filepath of label file for classes.
+   * @param inputSize The size of image input
+   * @param isQuantized Boolean representing model is quantized or not
+   * @param imageMean Mean subtracted from every channel value of a float model's input
+   * @param imageStd Standard deviation every channel value of a float model's input is divided by
+   */
+  public static Classifier create(
+      final AssetManager assetManager,
+      final String modelFilename,
+      final String labelFilename,
+      final int inputSize,
+      final boolean isQuantized,
+      final float imageMean,
+      final float imageStd)
+      throws IOException {
+    return create(
+        assetManager,
+        modelFilename,
+        labelFilename,
+        inputSize,
+        isQuantized,
+        imageMean,
+        imageStd,
+        null);
+  }
+
+  /**
+   * Initializes a native TensorFlow session for classifying images.
+   *
+   * @param assetManager The asset manager to be used to load assets.
+   * @param modelFilename The filepath of the model GraphDef protocol buffer.
+   * @param labelFilename The filepath of label file for classes.
+   * @param inputSize The size of image input
+   * @param isQuantized Boolean representing model is quantized or not
+   * @param imageMean Mean subtracted from every channel value of a float model's input
+   * @param imageStd Standard deviation every channel value of a float model's input is divided by
+   * @param outputDecoder Decodes the model's outputs, or null for the post-process op's outputs
+   */
+  public static Classifier create(
+      final AssetManager assetManager,
+      final String modelFilename,
+      final String labelFilename,
+      final int inputSize,
+      final boolean isQuantized,
+      final float imageMean,
+      final float imageStd,
+      final OutputDecoder outputDecoder)
+      throws IOException {
     final TFLiteObjectDetectionAPIModel d = new TFLiteObjectDetectionAPIModel();
 
     InputStream labelsInput = null;
@@ -110,12 +185,15 @@ public class TFLiteObjectDetectionAPIModel implements Classifier {
     labelsInput = assetManager.open(actualFilename);
     BufferedReader br = null;
     br = new BufferedReader(new InputStreamReader(labelsInput));
+    final List<String> labels = new ArrayList<>();
     String line;
     while ((line = br.readLine()) != null) {
       LOGGER.w(line);
-      d.labels.add(line);
+      labels.add(line);
     }
     br.close();
+    d.labels = labels.toArray(new String[0]);
+    d.labelList = Collections.unmodifiableList(Arrays.asList(d.labels));
 
     d.inputSize = inputSize;
 
@@ -136,17 +214,43 @@ public class TFLiteObjectDetectionAPIModel implements Classifier {
     d.imgData = ByteBuffer.allocateDirect(1 * d.inputSize * d.inputSize * 3 * numBytesPerChannel);
     d.imgData.order(ByteOrder.nativeOrder());
     d.intValues = new int[d.inputSize * d.inputSize];
+    if (isQuantized) {
+      d.rgbValues = new byte[d.inputSize * d.inputSize * 3];
+    } else {
+      d.normalizationTable = new float[256];
+      for (int i = 0; i < 256; ++i) {
+        d.normalizationTable[i] = (i - imageMean) / imageStd;
+      }
+      d.floatRowValues = new float[d.inputSize * 3];
+      d.floatInput = d.imgData.asFloatBuffer();
+    }
 
     d.tfLite.setNumThreads(NUM_THREADS);
-    d.outputLocations = new float[1][NUM_DETECTIONS][4];
-    d.outputClasses = new float[1][NUM_DETECTIONS];
-    d.outputScores = new float[1][NUM_DETECTIONS];
-    d.numDetections = new float[1];
+    d.inputArray = new Object[] {d.imgData};
+    d.outputMap = new HashMap<>();
+    d.outputDecoder =
+        outputDecoder != null
+            ? outputDecoder
+            : new PostProcessOutputDecoder(NUM_DETECTIONS, USE_DIRECT_OUTPUT_BUFFERS);
+    d.outputDecoder.bind(d.tfLite, d.outputMap);
+
+    d.recognitionPool = new Recognition[NUM_DETECTIONS];
+    for (int i = 0; i < NUM_DETECTIONS; ++i) {
+      d.recognitionPool[i] = new Recognition(String.valueOf(i), null, 0.0f, new RectF());
+    }
+    d.recognitions = new ArrayList<>(NUM_DETECTIONS);
+    d.detections = new DetectionBatch(NUM_DETECTIONS);
     return d;
   }
 
   @Override
   public List<Recognition> recognizeImage(final Bitmap bitmap) {
+    recognizeImage(bitmap, detections);
+    return toRecognitions(detections);
+  }
+
+  @Override
+  public void recognizeImage(final Bitmap bitmap, final DetectionBatch batch) {
     // Log this method so that it can be analyzed with systrace.
     Trace.beginSection("recognizeImage");
 
@@ -155,69 +259,113 @@ public class TFLiteObjectDetectionAPIModel implements Classifier {
     // on the provided parameters.
     bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
 
+    if (isModelQuantized) {
+      packQuantized();
+    } else {
+      packFloat();
+    }
+    Trace.endSection(); // preprocessBitmap
+
+    recognizeInputBuffer(batch);
+    Trace.endSection(); // "recognizeImage"
+  }
+
+  /**
+   * Unpacks intValues into interleaved RGB bytes in a reusable array and hands that to the direct
+   * input buffer in a single bulk put, instead of three bounds-checked puts per pixel.
+   */
+  private void packQuantized() {
+    final int[] pixels = intValues;
+    final byte[] rgb = rgbValues;
+    for (int i = 0, p = 0; i < pixels.length; ++i, p += 3) {
+      final int pixelValue = pixels[i];
+      rgb[p] = (byte) (pixelValue >> 16);
+      rgb[p + 1] = (byte) (pixelValue >> 8);
+      rgb[p + 2] = (byte) pixelValue;
+    }
     imgData.rewind();
-    for (int i = 0; i < inputSize; ++i) {
-      for (int j = 0; j < inputSize; ++j) {
-        int pixelValue = intValues[i * inputSize + j];
-        if (isModelQuantized) {
-          // Quantized model
-          imgData.put((byte) ((pixelValue >> 16) & 0xFF));
-          imgData.put((byte) ((pixelValue >> 8) & 0xFF));
-          imgData.put((byte) (pixelValue & 0xFF));
-        } else { // Float model
-          imgData.putFloat((((pixelValue >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-          imgData.putFloat((((pixelValue >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-          imgData.putFloat(((pixelValue & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-        }
+    imgData.put(rgb);
+  }
+
+  /**
+   * Normalizes intValues through the precomputed table and writes them to the input a row at a
+   * time through a FloatBuffer view, instead of a division and a putFloat per channel value.
+   */
+  private void packFloat() {
+    final int[] pixels = intValues;
+    final float[] table = normalizationTable;
+    final float[] row = floatRowValues;
+    floatInput.rewind();
+    for (int i = 0, pixel = 0; i < inputSize; ++i) {
+      for (int p = 0; p < row.length; p += 3, ++pixel) {
+        final int pixelValue = pixels[pixel];
+        row[p] = table[(pixelValue >> 16) & 0xFF];
+        row[p + 1] = table[(pixelValue >> 8) & 0xFF];
+        row[p + 2] = table[pixelValue & 0xFF];
       }
+      floatInput.put(row);
     }
-    Trace.endSection(); // preprocessBitmap
+  }
 
-    // Copy the input data into TensorFlow.
-    Trace.beginSection("feed");
-    outputLocations = new float[1][NUM_DETECTIONS][4];
-    outputClasses = new float[1][NUM_DETECTIONS];
-    outputScores = new float[1][NUM_DETECTIONS];
-    numDetections = new float[1];
-
-    Object[] inputArray = {imgData};
-    Map<Integer, Object> outputMap = new HashMap<>();
-    outputMap.put(0, outputLocations);
-    outputMap.put(1, outputClasses);
-    outputMap.put(2, outputScores);
-    outputMap.put(3, numDetections);
-    Trace.endSection();
+  @Override
+  public List<Recognition> recognizeInputBuffer() {
+    recognizeInputBuffer(detections);
+    return toRecognitions(detections);
+  }
+
+  @Override
+  public void recognizeInputBuffer(final DetectionBatch batch) {
+    Trace.beginSection("recognizeInputBuffer");
 
-    // Run the inference call.
+    // Run the inference call. The output arrays and the argument map were allocated in create()
+    // and are overwritten in place, so a call does not allocate in steady state.
     Trace.beginSection("run");
+    outputDecoder.prepareOutputs();
     tfLite.runForMultipleInputsOutputs(inputArray, outputMap);
     Trace.endSection();
 
-    // Show the best detections.
-    // after scaling them back to the input size.
-    final ArrayList<Recognition> recognitions = new ArrayList<>(NUM_DETECTIONS);
-    for (int i = 0; i < NUM_DETECTIONS; ++i) {
-      final RectF detection =
-          new RectF(
-              outputLocations[0][i][1] * inputSize,
-              outputLocations[0][i][0] * inputSize,
-              outputLocations[0][i][3] * inputSize,
-              outputLocations[0][i][2] * inputSize);
-      // SSD Mobilenet V1 Model assumes class 0 is background class
-      // in label file and class labels start from 1 to number_of_classes+1,
-      // while outputClasses correspond to class index from 0 to number_of_classes
-      int labelOffset = 1;
-      recognitions.add(
-          new Recognition(
-              "" + i,
-              labels.get((int) outputClasses[0][i] + labelOffset),
-              outputScores[0][i],
-              detection));
+    Trace.beginSection("decode");
+    outputDecoder.decode(inputSize, minimumConfidence, maxResults, labels.length, batch);
+    Trace.endSection();
+    Trace.endSection(); // "recognizeInputBuffer"
+  }
+
+  /** Copies a batch into the pooled Recognition objects backing the List based API. */
+  private List<Recognition> toRecognitions(final DetectionBatch batch) {
+    recognitions.clear();
+    final float[] boxes = batch.boxes;
+    for (int i = 0; i < batch.count; ++i) {
+      final int b = i * 4;
+      final Recognition recognition = recognitionPool[i];
+      final int classId = batch.classIds[i];
+      recognition.update(
+          classId,
+          labels[classId],
+          batch.scores[i],
+          boxes[b],
+          boxes[b + 1],
+          boxes[b + 2],
+          boxes[b + 3]);
+      recognitions.add(recognition);
     }
-    Trace.endSection(); // "recognizeImage"
     return recognitions;
   }
 
+  @Override
+  public List<String> getLabels() {
+    return labelList;
+  }
+
+  @Override
+  public ByteBuffer getInputBuffer() {
+    return imgData;
+  }
+
+  @Override
+  public float[] getNormalizationTable() {
+    return normalizationTable;
+  }
+
   @Override
   public void enableStatLogging(final boolean logStats) {}
 
@@ -237,4 +385,14 @@ public class TFLiteObjectDetectionAPIModel implements Classifier {
   public void setUseNNAPI(boolean isChecked) {
     if (tfLite != null) tfLite.setUseNNAPI(isChecked);
   }
+
+  @Override
+  public void setMinimumConfidence(float minimumConfidence) {
+    this.minimumConfidence = minimumConfidence;
+  }
+
+  @Override
+  public void setMaxResults(int maxResults) {
+    this.maxResults = Math.min(maxResults, NUM_DETECTIONS);
+  }
 }
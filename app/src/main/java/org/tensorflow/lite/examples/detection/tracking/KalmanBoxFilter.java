@@ -0,0 +1,151 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tracking;
+
+import android.graphics.RectF;
+
+/**
+ * Constant velocity Kalman filter over a box's center and size. The four coordinates (center x,
+ * center y, width, height) have no cross terms in the motion model, so each is filtered on its
+ * own with a 2x2 position and velocity covariance, which keeps every step a handful of float
+ * operations. Time is measured in frames.
+ */
+class KalmanBoxFilter {
+  private static final int CENTER_X = 0;
+  private static final int CENTER_Y = 1;
+  private static final int WIDTH = 2;
+  private static final int HEIGHT = 3;
+  private static final int DIMS = 4;
+  // Initial velocity variance, in pixels squared per frame squared, before a second measurement.
+  private static final float INITIAL_VELOCITY_VARIANCE = 100.0f;
+  /** Number of floats {@link #save} writes: position, velocity and the three covariance terms. */
+  static final int STATE_SIZE = 5 * DIMS;
+
+  // Spectral density of the white noise acceleration driving the motion model.
+  private final float processNoise;
+  // Variance of a measured coordinate, in pixels squared.
+  private final float measurementNoise;
+
+  private final float[] position = new float[DIMS];
+  private final float[] velocity = new float[DIMS];
+  // Covariance of each coordinate: var(position), cov(position, velocity), var(velocity).
+  private final float[] p00 = new float[DIMS];
+  private final float[] p01 = new float[DIMS];
+  private final float[] p11 = new float[DIMS];
+  private final float[] measurement = new float[DIMS];
+
+  KalmanBoxFilter(final RectF box, final float processNoise, final float measurementNoise) {
+    this.processNoise = processNoise;
+    this.measurementNoise = measurementNoise;
+    setMeasurement(box, position);
+    for (int i = 0; i < DIMS; ++i) {
+      velocity[i] = 0.0f;
+      p00[i] = measurementNoise;
+      p01[i] = 0.0f;
+      p11[i] = INITIAL_VELOCITY_VARIANCE;
+    }
+  }
+
+  /** Advances the state by {@code frames} frames. */
+  void predict(final float frames) {
+    if (frames <= 0.0f) {
+      return;
+    }
+    final float dt = frames;
+    final float dt2 = dt * dt;
+    final float q00 = processNoise * dt2 * dt2 * 0.25f;
+    final float q01 = processNoise * dt2 * dt * 0.5f;
+    final float q11 = processNoise * dt2;
+    for (int i = 0; i < DIMS; ++i) {
+      position[i] += velocity[i] * dt;
+      // P = F P F^T + Q, with F = [1 dt; 0 1].
+      final float a = p00[i] + dt * (2.0f * p01[i] + dt * p11[i]) + q00;
+      final float b = p01[i] + dt * p11[i] + q01;
+      p00[i] = a;
+      p01[i] = b;
+      p11[i] += q11;
+    }
+    // A box shrinking at a steady rate must not turn inside out.
+    position[WIDTH] = Math.max(1.0f, position[WIDTH]);
+    position[HEIGHT] = Math.max(1.0f, position[HEIGHT]);
+  }
+
+  /** Corrects the state with a measured box. */
+  void update(final RectF box) {
+    setMeasurement(box, measurement);
+    for (int i = 0; i < DIMS; ++i) {
+      final float residual = measurement[i] - position[i];
+      final float innovation = p00[i] + measurementNoise;
+      final float k0 = p00[i] / innovation;
+      final float k1 = p01[i] / innovation;
+      position[i] += k0 * residual;
+      velocity[i] += k1 * residual;
+      // P = (I - K H) P, with H = [1 0].
+      final float newP11 = p11[i] - k1 * p01[i];
+      final float newP01 = p01[i] * (1.0f - k0);
+      p00[i] *= 1.0f - k0;
+      p01[i] = newP01;
+      p11[i] = newP11;
+    }
+  }
+
+  /** Writes the current box estimate into {@code out}. */
+  void getBox(final RectF out) {
+    final float halfWidth = position[WIDTH] * 0.5f;
+    final float halfHeight = position[HEIGHT] * 0.5f;
+    out.set(
+        position[CENTER_X] - halfWidth,
+        position[CENTER_Y] - halfHeight,
+        position[CENTER_X] + halfWidth,
+        position[CENTER_Y] + halfHeight);
+  }
+
+  /** Writes the state into {@code out} at {@code offset}, for {@link #restore} to roll back to. */
+  void save(final float[] out, final int offset) {
+    System.arraycopy(position, 0, out, offset, DIMS);
+    System.arraycopy(velocity, 0, out, offset + DIMS, DIMS);
+    System.arraycopy(p00, 0, out, offset + 2 * DIMS, DIMS);
+    System.arraycopy(p01, 0, out, offset + 3 * DIMS, DIMS);
+    System.arraycopy(p11, 0, out, offset + 4 * DIMS, DIMS);
+  }
+
+  /** Replaces the state with one written by {@link #save}. */
+  void restore(final float[] state, final int offset) {
+    System.arraycopy(state, offset, position, 0, DIMS);
+    System.arraycopy(state, offset + DIMS, velocity, 0, DIMS);
+    System.arraycopy(state, offset + 2 * DIMS, p00, 0, DIMS);
+    System.arraycopy(state, offset + 3 * DIMS, p01, 0, DIMS);
+    System.arraycopy(state, offset + 4 * DIMS, p11, 0, DIMS);
+  }
+
+  /** Writes the box estimate of a state written by {@link #save} into {@code out}. */
+  static void getBox(final float[] state, final int offset, final RectF out) {
+    final float halfWidth = state[offset + WIDTH] * 0.5f;
+    final float halfHeight = state[offset + HEIGHT] * 0.5f;
+    out.set(
+        state[offset + CENTER_X] - halfWidth,
+        state[offset + CENTER_Y] - halfHeight,
+        state[offset + CENTER_X] + halfWidth,
+        state[offset + CENTER_Y] + halfHeight);
+  }
+
+  private static void setMeasurement(final RectF box, final float[] out) {
+    out[CENTER_X] = (box.left + box.right) * 0.5f;
+    out[CENTER_Y] = (box.top + box.bottom) * 0.5f;
+    out[WIDTH] = box.right - box.left;
+    out[HEIGHT] = box.bottom - box.top;
+  }
+}
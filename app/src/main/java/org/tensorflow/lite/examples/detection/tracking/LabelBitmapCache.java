@@ -0,0 +1,80 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+
+package org.tensorflow.lite.examples.detection.tracking;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Paint.Style;
+import android.text.TextUtils;
+
+/**
+ * Direct-mapped cache of pre-rendered box labels, keyed by class and confidence rounded to a whole
+ * percent. Drawing a cached label is a single bitmap blit, so a scene whose labels do not change
+ * allocates nothing. Not thread safe; use it from the drawing thread only.
+ */
+class LabelBitmapCache {
+  // Number of cache slots, a power of two.
+  private static final int CAPACITY_BITS = 7;
+  private static final int CAPACITY = 1 << CAPACITY_BITS;
+
+  private final Paint textPaint = new Paint();
+  private final float textSize;
+  private final int[] keys = new int[CAPACITY];
+  private final String[] titles = new String[CAPACITY];
+  private final Bitmap[] bitmaps = new Bitmap[CAPACITY];
+
+  LabelBitmapCache(final float textSize) {
+    this.textSize = textSize;
+    textPaint.setTextSize(textSize);
+    textPaint.setColor(Color.WHITE);
+    textPaint.setStyle(Style.FILL);
+    textPaint.setAntiAlias(false);
+  }
+
+  /** Height of the label background, matching the text size. */
+  float getTextSize() {
+    return textSize;
+  }
+
+  /**
+   * Returns white text reading "{@code title} NN%", or just "NN%" if {@code title} is empty, with
+   * its baseline {@link #getTextSize()} below the top of the bitmap.
+   */
+  Bitmap get(final int classId, final String title, final float confidence) {
+    final int percent = Math.max(0, Math.min(100, Math.round(100 * confidence)));
+    final int key = classId * 101 + percent;
+    final int slot = (key * 0x9E3779B1) >>> (32 - CAPACITY_BITS);
+    // Titles come from an immutable label table, so comparing references is enough.
+    if (bitmaps[slot] != null && keys[slot] == key && titles[slot] == title) {
+      return bitmaps[slot];
+    }
+
+    final String text = TextUtils.isEmpty(title) ? percent + "%" : title + " " + percent + "%";
+    final int width = Math.max(1, (int) Math.ceil(textPaint.measureText(text)));
+    final int height = (int) Math.ceil(textSize + textPaint.descent());
+    final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    new Canvas(bitmap).drawText(text, 0, textSize, textPaint);
+    // The evicted bitmap is left to the garbage collector rather than recycled, since a frame
+    // recorded by a hardware accelerated canvas may still refer to it.
+    keys[slot] = key;
+    titles[slot] = title;
+    bitmaps[slot] = bitmap;
+    return bitmap;
+  }
+}
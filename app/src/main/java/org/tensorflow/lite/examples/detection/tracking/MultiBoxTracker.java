@@ -16,6 +16,7 @@ limitations under the License.
 package org.tensorflow.lite.examples.detection.tracking;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
@@ -24,21 +25,48 @@ import android.graphics.Paint.Cap;
 import android.graphics.Paint.Join;
 import android.graphics.Paint.Style;
 import android.graphics.RectF;
-import android.text.TextUtils;
-import android.util.Pair;
 import android.util.TypedValue;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.atomic.AtomicReference;
 import org.tensorflow.lite.examples.detection.env.BorderedText;
 import org.tensorflow.lite.examples.detection.env.ImageUtils;
 import org.tensorflow.lite.examples.detection.env.Logger;
-import org.tensorflow.lite.examples.detection.tflite.Classifier.Recognition;
+import org.tensorflow.lite.examples.detection.tflite.DetectionBatch;
+import org.tensorflow.lite.examples.detection.tflite.NonMaxSuppression;
 
-/** A tracker that handles non-max suppression and matches existing objects to new detections. */
+/**
+ * A tracker that handles non-max suppression and matches existing objects to new detections.
+ *
+ * <p>Every change to the tracks is published as an immutable {@link Snapshot} with its boxes
+ * already mapped to the overlay canvas, so {@link #draw} and {@link #drawDebug} never take the
+ * tracker's lock and the tracking thread never waits for rendering.
+ */
 public class MultiBoxTracker {
   private static final float TEXT_SIZE_DIP = 18;
   private static final float MIN_SIZE = 16.0f;
+  // Detections of the same class overlapping a better one by more than this are dropped.
+  private static final float DEFAULT_NMS_IOU_THRESHOLD = 0.5f;
+  // A detection continues a track if their boxes overlap by at least this much.
+  private static final float MATCH_IOU_THRESHOLD = 0.3f;
+  // A track is dropped after this many detection rounds in a row without a matching detection.
+  private static final int MAX_MISSED_DETECTIONS = 2;
+  // A track is drawn once this many detections matched it; until then a single miss drops it, so a
+  // one-off false detection never shows up.
+  private static final int MIN_HITS = 2;
+  // Kalman filter noise: acceleration spectral density and measured coordinate variance, in pixels.
+  private static final float KALMAN_PROCESS_NOISE = 1.0f;
+  private static final float KALMAN_MEASUREMENT_NOISE = 16.0f;
+  // Optical flow follows a FLOW_GRID x FLOW_GRID grid of points spanning each box, inset from its
+  // corners by FLOW_INSET of its size, and needs MIN_FLOW_POINTS of them to move the box.
+  private static final int FLOW_GRID = 3;
+  private static final float FLOW_INSET = 0.15f;
+  private static final int MIN_FLOW_POINTS = 4;
+  // Frames of state kept per track, which bounds how late detections can be applied exactly.
+  private static final int TRACK_HISTORY = 16;
   private static final int[] COLORS = {
     Color.BLUE,
     Color.RED,
@@ -56,17 +84,75 @@ public class MultiBoxTracker {
     Color.parseColor("#AA33AA"),
     Color.parseColor("#0D0068")
   };
-  final List<Pair<Float, RectF>> screenRects = new LinkedList<Pair<Float, RectF>>();
+  /** Maximum number of objects tracked at once, one per box color. */
+  public static final int MAX_TRACKS = COLORS.length;
+
+  /**
+   * Told whenever the tracker publishes a snapshot that draws differently from the last one, and
+   * whenever it drops a track. Called on the tracking thread, with the tracker locked; must return
+   * quickly.
+   */
+  public interface Listener {
+    void onTracksChanged();
+
+    /** Called when the track with this id is dropped; the id is never handed out again. */
+    void onTrackDropped(int trackId);
+  }
+
   private final Logger logger = new Logger();
   private final Queue<Integer> availableColors = new LinkedList<Integer>();
   private final List<TrackedRecognition> trackedObjects = new LinkedList<TrackedRecognition>();
   private final Paint boxPaint = new Paint();
   private final float textSizePx;
   private final BorderedText borderedText;
-  private Matrix frameToCanvasMatrix;
   private int frameWidth;
   private int frameHeight;
   private int sensorOrientation;
+  private List<String> labels;
+  private final NonMaxSuppression nonMaxSuppression =
+      new NonMaxSuppression(DEFAULT_NMS_IOU_THRESHOLD, true);
+  // Scratch space for suppressDuplicates(), grown on demand.
+  private int[] nmsKeep = new int[0];
+  private float[] nmsScores = new float[0];
+  private DetectionBatch nmsSurvivors;
+  // Identifier handed to the next new track.
+  private int nextTrackId;
+  // Frame timestamp the tracks have been predicted up to, or -1 before the first frame.
+  private long lastTimestamp = -1;
+  // Scratch space for matchDetections(), grown on demand.
+  private float[] matchIous = new float[0];
+  private int[] detectionTracks = new int[0];
+  private final RectF detectionRect = new RectF();
+  // Scratch space for trackFlow().
+  private final float[] flowStart = new float[2 * FLOW_GRID * FLOW_GRID];
+  private final float[] flowPoints = new float[2 * FLOW_GRID * FLOW_GRID];
+  private final boolean[] flowTracked = new boolean[FLOW_GRID * FLOW_GRID];
+  private final float[] flowValues = new float[FLOW_GRID * FLOW_GRID * FLOW_GRID * FLOW_GRID];
+  // Latest state of the tracks, read by the drawing thread without locking.
+  private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>();
+  private Listener listener;
+  // Size of the canvas last drawn to, packed by packSize(), or 0 before the first draw.
+  private volatile long canvasSize;
+  // Frame to canvas transform, reused by every snapshot published for the same canvas size.
+  private Matrix canvasMatrix;
+  private long canvasMatrixSize;
+  // Detections of the last round in frame coordinates, shared by snapshots until the next round.
+  private float[] debugBoxes = new float[0];
+  private float[] debugScores = new float[0];
+  // Drawing state, only touched by the drawing thread.
+  private final RectF drawRect = new RectF();
+  private final LabelBitmapCache labelCache;
+  private final Paint labelPaint = new Paint();
+  private final Paint debugTextPaint = new Paint();
+  private final Paint debugBoxPaint = new Paint();
+  // Frame to canvas transform for snapshots published for another canvas size, and the frame and
+  // canvas configuration it was computed for.
+  private Matrix drawMatrix;
+  private int drawMatrixFrameWidth;
+  private int drawMatrixFrameHeight;
+  private int drawMatrixOrientation;
+  private long drawMatrixSize;
+  private float[] drawBoxes = new float[0];
 
   public MultiBoxTracker(final Context context) {
     for (final int color : COLORS) {
@@ -84,6 +170,14 @@ public class MultiBoxTracker {
         TypedValue.applyDimension(
             TypedValue.COMPLEX_UNIT_DIP, TEXT_SIZE_DIP, context.getResources().getDisplayMetrics());
     borderedText = new BorderedText(textSizePx);
+    labelCache = new LabelBitmapCache(textSizePx);
+    labelPaint.setStyle(Style.FILL);
+
+    debugTextPaint.setColor(Color.WHITE);
+    debugTextPaint.setTextSize(60.0f);
+    debugBoxPaint.setColor(Color.RED);
+    debugBoxPaint.setAlpha(200);
+    debugBoxPaint.setStyle(Style.STROKE);
   }
 
   public synchronized void setFrameConfiguration(
@@ -91,121 +185,814 @@ public class MultiBoxTracker {
     frameWidth = width;
     frameHeight = height;
     this.sensorOrientation = sensorOrientation;
+    canvasMatrix = null;
+    publishSnapshot();
   }
 
-  public synchronized void drawDebug(final Canvas canvas) {
-    final Paint textPaint = new Paint();
-    textPaint.setColor(Color.WHITE);
-    textPaint.setTextSize(60.0f);
+  /** Draws the detections of the last round. Does not lock the tracker. */
+  public void drawDebug(final Canvas canvas) {
+    final Snapshot frame = snapshot.get();
+    if (frame == null) {
+      return;
+    }
+    final float[] boxes =
+        getCanvasBoxes(
+            frame,
+            frame.debugFrameBoxes,
+            frame.debugCanvasBoxes,
+            frame.debugScores.length,
+            packSize(canvas.getWidth(), canvas.getHeight()));
+    for (int i = 0; i < frame.debugScores.length; ++i) {
+      final RectF rect = drawRect;
+      rect.set(boxes[i * 4], boxes[i * 4 + 1], boxes[i * 4 + 2], boxes[i * 4 + 3]);
+      canvas.drawRect(rect, debugBoxPaint);
+      canvas.drawText("" + frame.debugScores[i], rect.left, rect.top, debugTextPaint);
+      borderedText.drawText(canvas, rect.centerX(), rect.centerY(), "" + frame.debugScores[i]);
+    }
+  }
 
-    final Paint boxPaint = new Paint();
-    boxPaint.setColor(Color.RED);
-    boxPaint.setAlpha(200);
-    boxPaint.setStyle(Style.STROKE);
+  public synchronized void setListener(final Listener listener) {
+    this.listener = listener;
+  }
+
+  /** Sets the labels that the class ids of tracked detections index into. */
+  public synchronized void setLabels(final List<String> labels) {
+    this.labels = labels;
+  }
+
+  /**
+   * Configures the non-max suppression applied by {@link #trackResults}.
+   *
+   * @param iouThreshold Detections overlapping a better one by more than this are suppressed
+   * @param classAware If true, only detections of the same class suppress each other
+   * @param soft If true, overlapping detections have their score decayed instead of being dropped
+   * @param softSigma Width of the Soft-NMS Gaussian penalty
+   * @param softScoreThreshold Soft-NMS drops detections whose decayed score falls below this
+   */
+  public synchronized void setNonMaxSuppression(
+      final float iouThreshold,
+      final boolean classAware,
+      final boolean soft,
+      final float softSigma,
+      final float softScoreThreshold) {
+    nonMaxSuppression.setIouThreshold(iouThreshold);
+    nonMaxSuppression.setClassAware(classAware);
+    nonMaxSuppression.setSoft(soft, softSigma, softScoreThreshold);
+  }
+
+  /**
+   * Tracks the detections of a batch whose boxes are already in frame coordinates. Duplicate
+   * detections are removed from the batch in place by non-max suppression, and the survivors are
+   * left sorted by descending score, so callers see the same detections the tracker does.
+   */
+  public synchronized void trackResults(final DetectionBatch detections, final long timestamp) {
+    logger.i("Processing %d results from %d", detections.count, timestamp);
+    suppressDuplicates(detections);
+    advanceTo(timestamp);
+    processResults(detections, timestamp);
+    recordHistory();
+    publishSnapshot();
+  }
+
+  /**
+   * Advances every track to a frame that is not run through the detector, moving its box to the
+   * position its Kalman filter predicts.
+   */
+  public synchronized void predict(final long timestamp) {
+    advanceTo(timestamp);
+    recordHistory();
+    publishSnapshot();
+  }
+
+  /**
+   * Advances every track to the next frame like {@link #predict}, but measures how each box moved
+   * with optical flow and corrects the track's Kalman filter with it. {@code flow} must already
+   * hold this frame as its current frame and the frame the tracks were last advanced to as its
+   * previous one; otherwise, and for boxes whose points are lost, this falls back to prediction.
+   */
+  public synchronized void trackFlow(final OpticalFlowTracker flow, final long timestamp) {
+    if (!flow.isReady() || lastTimestamp < 0 || timestamp != lastTimestamp + 1) {
+      advanceTo(timestamp);
+      recordHistory();
+      publishSnapshot();
+      return;
+    }
+    for (final TrackedRecognition track : trackedObjects) {
+      track.hasFlow = measureFlow(flow, track.location, detectionRect);
+      if (track.hasFlow) {
+        track.flowSource.set(track.location);
+        track.flowLocation.set(detectionRect);
+      }
+    }
+    advanceTo(timestamp);
+    for (final TrackedRecognition track : trackedObjects) {
+      if (track.hasFlow) {
+        track.filter.update(track.flowLocation);
+        track.filter.getBox(track.location);
+      }
+    }
+    recordHistory();
+    publishSnapshot();
+  }
+
+  /**
+   * Writes the id, class and confidence of every track that a detection of the last round was
+   * matched to, including tracks it started, and returns their number. The arrays must hold
+   * {@link #MAX_TRACKS} entries.
+   */
+  public synchronized int getMatchedTracks(
+      final int[] trackIds, final int[] classIds, final float[] confidences) {
+    int count = 0;
+    for (final TrackedRecognition track : trackedObjects) {
+      if (track.matched) {
+        trackIds[count] = track.id;
+        classIds[count] = track.classId;
+        confidences[count] = track.detectionConfidence;
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Tracks a grid of points spanning {@code box} and writes where the box moved to into {@code
+   * out}: shifted by the median point displacement and scaled by the median ratio of point
+   * distances, which ignores the minority of points that land on background. Returns false if too
+   * few points were tracked.
+   */
+  private boolean measureFlow(final OpticalFlowTracker flow, final RectF box, final RectF out) {
+    final int numPoints = FLOW_GRID * FLOW_GRID;
+    final float insetX = box.width() * FLOW_INSET;
+    final float insetY = box.height() * FLOW_INSET;
+    final float stepX = (box.width() - 2.0f * insetX) / (FLOW_GRID - 1);
+    final float stepY = (box.height() - 2.0f * insetY) / (FLOW_GRID - 1);
+    for (int j = 0, p = 0; j < FLOW_GRID; ++j) {
+      for (int i = 0; i < FLOW_GRID; ++i, p += 2) {
+        flowStart[p] = box.left + insetX + i * stepX;
+        flowStart[p + 1] = box.top + insetY + j * stepY;
+      }
+    }
+    System.arraycopy(flowStart, 0, flowPoints, 0, flowStart.length);
+    if (flow.trackPoints(flowPoints, numPoints, flowTracked) < MIN_FLOW_POINTS) {
+      return false;
+    }
+
+    int count = 0;
+    for (int i = 0; i < numPoints; ++i) {
+      if (flowTracked[i]) {
+        flowValues[count++] = flowPoints[2 * i] - flowStart[2 * i];
+      }
+    }
+    final float dx = median(flowValues, count);
+    count = 0;
+    for (int i = 0; i < numPoints; ++i) {
+      if (flowTracked[i]) {
+        flowValues[count++] = flowPoints[2 * i + 1] - flowStart[2 * i + 1];
+      }
+    }
+    final float dy = median(flowValues, count);
 
-    for (final Pair<Float, RectF> detection : screenRects) {
-      final RectF rect = detection.second;
-      canvas.drawRect(rect, boxPaint);
-      canvas.drawText("" + detection.first, rect.left, rect.top, textPaint);
-      borderedText.drawText(canvas, rect.centerX(), rect.centerY(), "" + detection.first);
+    count = 0;
+    for (int i = 0; i < numPoints; ++i) {
+      for (int j = i + 1; j < numPoints; ++j) {
+        if (flowTracked[i] && flowTracked[j]) {
+          flowValues[count++] = distance(flowPoints, i, j) / distance(flowStart, i, j);
+        }
+      }
     }
+    final float scale = median(flowValues, count);
+
+    final float halfWidth = box.width() * scale * 0.5f;
+    final float halfHeight = box.height() * scale * 0.5f;
+    final float centerX = box.centerX() + dx;
+    final float centerY = box.centerY() + dy;
+    out.set(centerX - halfWidth, centerY - halfHeight, centerX + halfWidth, centerY + halfHeight);
+    return true;
   }
 
-  public synchronized void trackResults(final List<Recognition> results, final long timestamp) {
-    logger.i("Processing %d results from %d", results.size(), timestamp);
-    processResults(results);
+  /** Distance between points i and j of an array of interleaved x and y coordinates. */
+  private static float distance(final float[] points, final int i, final int j) {
+    return (float) Math.hypot(points[2 * j] - points[2 * i], points[2 * j + 1] - points[2 * i + 1]);
   }
 
-  private Matrix getFrameToCanvasMatrix() {
-    return frameToCanvasMatrix;
+  private static float median(final float[] values, final int count) {
+    Arrays.sort(values, 0, count);
+    return count % 2 == 1
+        ? values[count / 2]
+        : 0.5f * (values[count / 2 - 1] + values[count / 2]);
   }
 
-  public synchronized void draw(final Canvas canvas) {
-    final boolean rotated = sensorOrientation % 180 == 90;
-    final float multiplier =
-        Math.min(
-            canvas.getHeight() / (float) (rotated ? frameWidth : frameHeight),
-            canvas.getWidth() / (float) (rotated ? frameHeight : frameWidth));
-    frameToCanvasMatrix =
-        ImageUtils.getTransformationMatrix(
-            frameWidth,
-            frameHeight,
-            (int) (multiplier * (rotated ? frameHeight : frameWidth)),
-            (int) (multiplier * (rotated ? frameWidth : frameHeight)),
-            sensorOrientation,
-            false);
-    for (final TrackedRecognition recognition : trackedObjects) {
-      final RectF trackedPos = new RectF(recognition.location);
+  /**
+   * Predicts every track forward to {@code timestamp}. Tracks are never moved back: detections of a
+   * frame older than the tracks are applied in their own frame by {@code correct()}.
+   */
+  private void advanceTo(final long timestamp) {
+    if (lastTimestamp >= 0 && timestamp > lastTimestamp) {
+      final float frames = timestamp - lastTimestamp;
+      for (final TrackedRecognition track : trackedObjects) {
+        track.filter.predict(frames);
+        track.filter.getBox(track.location);
+      }
+    }
+    lastTimestamp = Math.max(lastTimestamp, timestamp);
+  }
+
+  /** Records the state of every track in the frame the tracks were last advanced to. */
+  private void recordHistory() {
+    for (final TrackedRecognition track : trackedObjects) {
+      track.record(lastTimestamp);
+    }
+  }
+
+  private void suppressDuplicates(final DetectionBatch detections) {
+    final int count = detections.count;
+    if (nmsKeep.length < count) {
+      nmsKeep = new int[count];
+      nmsScores = new float[count];
+    }
+    if (nmsSurvivors == null || nmsSurvivors.capacity < detections.capacity) {
+      nmsSurvivors = new DetectionBatch(detections.capacity);
+    }
+    final int kept =
+        nonMaxSuppression.select(
+            detections.boxes,
+            detections.classIds,
+            detections.scores,
+            count,
+            count,
+            nmsKeep,
+            nmsScores);
+
+    nmsSurvivors.clear();
+    final float[] boxes = detections.boxes;
+    for (int k = 0; k < kept; ++k) {
+      final int i = nmsKeep[k];
+      final int b = i * 4;
+      nmsSurvivors.add(
+          detections.classIds[i], nmsScores[k], boxes[b], boxes[b + 1], boxes[b + 2], boxes[b + 3]);
+    }
+    if (kept < count) {
+      logger.v("Suppressed %d of %d detections", count - kept, count);
+    }
+    detections.copyFrom(nmsSurvivors);
+  }
 
-      getFrameToCanvasMatrix().mapRect(trackedPos);
-      boxPaint.setColor(recognition.color);
+  /** Draws the tracked objects. Does not lock the tracker. */
+  public void draw(final Canvas canvas) {
+    final long size = packSize(canvas.getWidth(), canvas.getHeight());
+    // The next snapshot is mapped for this canvas.
+    canvasSize = size;
+    final Snapshot frame = snapshot.get();
+    if (frame == null) {
+      return;
+    }
+    final float[] boxes =
+        getCanvasBoxes(frame, frame.frameBoxes, frame.canvasBoxes, frame.count, size);
+    for (int i = 0; i < frame.count; ++i) {
+      final RectF trackedPos = drawRect;
+      trackedPos.set(boxes[i * 4], boxes[i * 4 + 1], boxes[i * 4 + 2], boxes[i * 4 + 3]);
+      boxPaint.setColor(frame.colors[i]);
 
       float cornerSize = Math.min(trackedPos.width(), trackedPos.height()) / 8.0f;
       canvas.drawRoundRect(trackedPos, cornerSize, cornerSize, boxPaint);
 
-      final String labelString =
-          !TextUtils.isEmpty(recognition.title)
-              ? String.format("%s %.2f", recognition.title, (100 * recognition.detectionConfidence))
-              : String.format("%.2f", (100 * recognition.detectionConfidence));
-      //            borderedText.drawText(canvas, trackedPos.left + cornerSize, trackedPos.top,
-      // labelString);
-      borderedText.drawText(
-          canvas, trackedPos.left + cornerSize, trackedPos.top, labelString + "%", boxPaint);
+      final Bitmap label =
+          labelCache.get(frame.classIds[i], frame.titles[i], frame.confidences[i]);
+      final float labelLeft = trackedPos.left + cornerSize;
+      labelPaint.setColor(frame.colors[i]);
+      labelPaint.setAlpha(160);
+      canvas.drawRect(
+          labelLeft,
+          trackedPos.top,
+          labelLeft + label.getWidth(),
+          trackedPos.top + labelCache.getTextSize(),
+          labelPaint);
+      canvas.drawBitmap(label, labelLeft, trackedPos.top, null);
     }
   }
 
-  private void processResults(final List<Recognition> results) {
-    final List<Pair<Float, Recognition>> rectsToTrack = new LinkedList<Pair<Float, Recognition>>();
+  /**
+   * Publishes the current tracks, mapped to the canvas last drawn to, for the drawing thread, and
+   * tells the listener. Does nothing if the tracks would draw the same as the last snapshot.
+   */
+  private void publishSnapshot() {
+    final long size = canvasSize;
+    if (isPublished(snapshot.get(), size)) {
+      return;
+    }
+    final int count = countConfirmedTracks();
+    final float[] frameBoxes = new float[count * 4];
+    final int[] colors = new int[count];
+    final int[] classIds = new int[count];
+    final String[] titles = new String[count];
+    final float[] confidences = new float[count];
+    int i = 0;
+    for (final TrackedRecognition track : trackedObjects) {
+      if (track.hits < MIN_HITS) {
+        continue;
+      }
+      final RectF location = track.location;
+      frameBoxes[i * 4] = location.left;
+      frameBoxes[i * 4 + 1] = location.top;
+      frameBoxes[i * 4 + 2] = location.right;
+      frameBoxes[i * 4 + 3] = location.bottom;
+      colors[i] = track.color;
+      classIds[i] = track.classId;
+      titles[i] = track.title;
+      confidences[i] = track.detectionConfidence;
+      ++i;
+    }
+
+    float[] canvasBoxes = null;
+    float[] debugCanvasBoxes = null;
+    if (size != 0) {
+      if (canvasMatrix == null || canvasMatrixSize != size) {
+        canvasMatrix = getFrameToCanvasMatrix(frameWidth, frameHeight, sensorOrientation, size);
+        canvasMatrixSize = size;
+      }
+      canvasBoxes = frameBoxes.clone();
+      DetectionBatch.mapBoxes(canvasMatrix, canvasBoxes, count);
+      debugCanvasBoxes = debugBoxes.clone();
+      DetectionBatch.mapBoxes(canvasMatrix, debugCanvasBoxes, debugScores.length);
+    }
+    snapshot.set(
+        new Snapshot(
+            frameWidth,
+            frameHeight,
+            sensorOrientation,
+            size,
+            count,
+            frameBoxes,
+            canvasBoxes,
+            colors,
+            classIds,
+            titles,
+            confidences,
+            debugBoxes,
+            debugCanvasBoxes,
+            debugScores));
+    if (listener != null) {
+      listener.onTracksChanged();
+    }
+  }
 
-    screenRects.clear();
-    final Matrix rgbFrameToScreen = new Matrix(getFrameToCanvasMatrix());
+  /** Returns the number of tracks matched often enough to be drawn. */
+  private int countConfirmedTracks() {
+    int count = 0;
+    for (final TrackedRecognition track : trackedObjects) {
+      if (track.hits >= MIN_HITS) {
+        ++count;
+      }
+    }
+    return count;
+  }
 
-    for (final Recognition result : results) {
-      if (result.getLocation() == null) {
+  /** Returns true if {@code published} already shows the current tracks on a canvas of size. */
+  private boolean isPublished(final Snapshot published, final long size) {
+    if (published == null
+        || published.canvasSize != size
+        || published.frameWidth != frameWidth
+        || published.frameHeight != frameHeight
+        || published.sensorOrientation != sensorOrientation
+        || published.debugFrameBoxes != debugBoxes
+        || published.count != countConfirmedTracks()) {
+      return false;
+    }
+    int i = 0;
+    for (final TrackedRecognition track : trackedObjects) {
+      if (track.hits < MIN_HITS) {
         continue;
       }
-      final RectF detectionFrameRect = new RectF(result.getLocation());
+      final RectF location = track.location;
+      final float[] boxes = published.frameBoxes;
+      if (boxes[i * 4] != location.left
+          || boxes[i * 4 + 1] != location.top
+          || boxes[i * 4 + 2] != location.right
+          || boxes[i * 4 + 3] != location.bottom
+          || published.colors[i] != track.color
+          || published.classIds[i] != track.classId
+          || published.titles[i] != track.title
+          || published.confidences[i] != track.detectionConfidence) {
+        return false;
+      }
+      ++i;
+    }
+    return true;
+  }
 
-      final RectF detectionScreenRect = new RectF();
-      rgbFrameToScreen.mapRect(detectionScreenRect, detectionFrameRect);
+  /**
+   * Returns the canvas boxes of a snapshot, or maps its frame boxes now into scratch space if the
+   * snapshot was published for a different canvas size, as happens before the first draw and after
+   * a resize.
+   */
+  private float[] getCanvasBoxes(
+      final Snapshot frame,
+      final float[] frameBoxes,
+      final float[] canvasBoxes,
+      final int count,
+      final long size) {
+    if (canvasBoxes != null && frame.canvasSize == size) {
+      return canvasBoxes;
+    }
+    if (drawMatrix == null
+        || drawMatrixSize != size
+        || drawMatrixFrameWidth != frame.frameWidth
+        || drawMatrixFrameHeight != frame.frameHeight
+        || drawMatrixOrientation != frame.sensorOrientation) {
+      drawMatrix =
+          getFrameToCanvasMatrix(
+              frame.frameWidth, frame.frameHeight, frame.sensorOrientation, size);
+      drawMatrixSize = size;
+      drawMatrixFrameWidth = frame.frameWidth;
+      drawMatrixFrameHeight = frame.frameHeight;
+      drawMatrixOrientation = frame.sensorOrientation;
+    }
+    if (drawBoxes.length < count * 4) {
+      drawBoxes = new float[count * 4];
+    }
+    System.arraycopy(frameBoxes, 0, drawBoxes, 0, count * 4);
+    DetectionBatch.mapBoxes(drawMatrix, drawBoxes, count);
+    return drawBoxes;
+  }
 
-      logger.v(
-          "Result! Frame: " + result.getLocation() + " mapped to screen:" + detectionScreenRect);
+  private static Matrix getFrameToCanvasMatrix(
+      final int frameWidth, final int frameHeight, final int sensorOrientation, final long size) {
+    final int canvasWidth = (int) (size >>> 32);
+    final int canvasHeight = (int) size;
+    final boolean rotated = sensorOrientation % 180 == 90;
+    final float multiplier =
+        Math.min(
+            canvasHeight / (float) (rotated ? frameWidth : frameHeight),
+            canvasWidth / (float) (rotated ? frameHeight : frameWidth));
+    return ImageUtils.getTransformationMatrix(
+        frameWidth,
+        frameHeight,
+        (int) (multiplier * (rotated ? frameHeight : frameWidth)),
+        (int) (multiplier * (rotated ? frameWidth : frameHeight)),
+        sensorOrientation,
+        false);
+  }
 
-      screenRects.add(new Pair<Float, RectF>(result.getConfidence(), detectionScreenRect));
+  private static long packSize(final int width, final int height) {
+    return ((long) width << 32) | (height & 0xffffffffL);
+  }
 
-      if (detectionFrameRect.width() < MIN_SIZE || detectionFrameRect.height() < MIN_SIZE) {
-        logger.w("Degenerate rectangle! " + detectionFrameRect);
-        continue;
+  private void processResults(final DetectionBatch detections, final long timestamp) {
+    // The arrays are shared by the published snapshots, so each round gets new ones, unless both
+    // rounds are empty.
+    if (detections.count > 0 || debugScores.length > 0) {
+      debugBoxes = Arrays.copyOf(detections.boxes, detections.count * 4);
+      debugScores = Arrays.copyOf(detections.scores, detections.count);
+    }
+
+    matchDetections(detections, timestamp);
+
+    // Tracks that went unmatched for too long are dropped and give their color back. Tracks not
+    // yet confirmed by MIN_HITS detections go at their first miss.
+    for (final Iterator<TrackedRecognition> it = trackedObjects.iterator(); it.hasNext(); ) {
+      final TrackedRecognition track = it.next();
+      final int maxMissed = track.hits < MIN_HITS ? 0 : MAX_MISSED_DETECTIONS;
+      if (track.missedDetections > maxMissed) {
+        availableColors.add(track.color);
+        it.remove();
+        if (listener != null) {
+          listener.onTrackDropped(track.id);
+        }
       }
+    }
 
-      rectsToTrack.add(new Pair<Float, Recognition>(result.getConfidence(), result));
+    // Detections that continue no track start a new one, as long as there are colors left.
+    for (int i = 0; i < detections.count; ++i) {
+      if (detectionTracks[i] >= 0) {
+        continue;
+      }
+      detections.getBox(i, detectionRect);
+      if (detectionRect.width() < MIN_SIZE || detectionRect.height() < MIN_SIZE) {
+        logger.w("Degenerate rectangle! " + detectionRect);
+        continue;
+      }
+      if (availableColors.isEmpty()) {
+        continue;
+      }
+      final TrackedRecognition track = new TrackedRecognition();
+      track.id = nextTrackId++;
+      track.filter =
+          new KalmanBoxFilter(detectionRect, KALMAN_PROCESS_NOISE, KALMAN_MEASUREMENT_NOISE);
+      // The track starts in the detection's frame and is predicted up to the current one.
+      track.record(timestamp);
+      track.filter.predict(lastTimestamp - timestamp);
+      track.location = new RectF();
+      track.filter.getBox(track.location);
+      track.flowSource = new RectF();
+      track.flowLocation = new RectF();
+      track.pastLocation = new RectF();
+      track.color = availableColors.poll();
+      updateTrack(track, detections, i);
+      track.matched = true;
+      trackedObjects.add(track);
     }
 
-    trackedObjects.clear();
-    if (rectsToTrack.isEmpty()) {
+    if (trackedObjects.isEmpty()) {
       logger.v("Nothing to track, aborting.");
-      return;
     }
+  }
 
-    for (final Pair<Float, Recognition> potential : rectsToTrack) {
-      final TrackedRecognition trackedRecognition = new TrackedRecognition();
-      trackedRecognition.detectionConfidence = potential.first;
-      trackedRecognition.location = new RectF(potential.second.getLocation());
-      trackedRecognition.title = potential.second.getTitle();
-      trackedRecognition.color = COLORS[trackedObjects.size()];
-      trackedObjects.add(trackedRecognition);
+  /**
+   * Greedily pairs tracks and detections by descending IoU, SORT style, and corrects every matched
+   * track with its detection. Afterwards detectionTracks[i] holds the index of the track detection
+   * i was matched to, or -1, and unmatched tracks have their miss count raised.
+   *
+   * <p>Inference finishes frames after the one it ran on, by which time the tracks have moved on,
+   * so detections are paired with and applied to each track's state in their own frame.
+   */
+  private void matchDetections(final DetectionBatch detections, final long timestamp) {
+    final int numTracks = trackedObjects.size();
+    final int numDetections = detections.count;
+    if (detectionTracks.length < numDetections) {
+      detectionTracks = new int[numDetections];
+    }
+    if (matchIous.length < numTracks * numDetections) {
+      matchIous = new float[numTracks * numDetections];
+    }
+    for (int i = 0; i < numDetections; ++i) {
+      detectionTracks[i] = -1;
+    }
 
-      if (trackedObjects.size() >= COLORS.length) {
+    int t = 0;
+    for (final TrackedRecognition track : trackedObjects) {
+      track.matched = false;
+      track.getHistoryBox(timestamp, track.pastLocation);
+      for (int i = 0; i < numDetections; ++i) {
+        matchIous[t * numDetections + i] = iou(track.pastLocation, detections, i);
+      }
+      ++t;
+    }
+
+    while (true) {
+      int best = -1;
+      float bestIou = MATCH_IOU_THRESHOLD;
+      for (int pair = 0; pair < numTracks * numDetections; ++pair) {
+        if (matchIous[pair] >= bestIou) {
+          bestIou = matchIous[pair];
+          best = pair;
+        }
+      }
+      if (best < 0) {
         break;
       }
+      final int trackIndex = best / numDetections;
+      final int detection = best % numDetections;
+      detectionTracks[detection] = trackIndex;
+      // Neither side of the pair can be matched again.
+      for (int i = 0; i < numDetections; ++i) {
+        matchIous[trackIndex * numDetections + i] = -1.0f;
+      }
+      for (int j = 0; j < numTracks; ++j) {
+        matchIous[j * numDetections + detection] = -1.0f;
+      }
+    }
+
+    t = 0;
+    for (final TrackedRecognition track : trackedObjects) {
+      for (int i = 0; i < numDetections; ++i) {
+        if (detectionTracks[i] == t) {
+          detections.getBox(i, detectionRect);
+          track.correct(timestamp, detectionRect, track.pastLocation);
+          track.filter.getBox(track.location);
+          updateTrack(track, detections, i);
+          track.matched = true;
+          break;
+        }
+      }
+      if (!track.matched) {
+        ++track.missedDetections;
+      }
+      ++t;
+    }
+  }
+
+  private void updateTrack(
+      final TrackedRecognition track, final DetectionBatch detections, final int detection) {
+    track.classId = detections.classIds[detection];
+    track.title = getLabel(track.classId);
+    track.detectionConfidence = detections.scores[detection];
+    track.missedDetections = 0;
+    ++track.hits;
+  }
+
+  private static float iou(final RectF box, final DetectionBatch detections, final int index) {
+    final float[] boxes = detections.boxes;
+    final int b = index * 4;
+    final float width = Math.min(box.right, boxes[b + 2]) - Math.max(box.left, boxes[b]);
+    final float height = Math.min(box.bottom, boxes[b + 3]) - Math.max(box.top, boxes[b + 1]);
+    if (width <= 0.0f || height <= 0.0f) {
+      return 0.0f;
+    }
+    final float intersection = width * height;
+    final float union =
+        box.width() * box.height()
+            + (boxes[b + 2] - boxes[b]) * (boxes[b + 3] - boxes[b + 1])
+            - intersection;
+    return intersection / union;
+  }
+
+  private String getLabel(final int classId) {
+    return labels != null && classId >= 0 && classId < labels.size() ? labels.get(classId) : null;
+  }
+
+  /**
+   * Immutable state of the tracks at one frame. Boxes are stored four floats each as left, top,
+   * right, bottom. The canvas boxes are mapped for {@link #canvasSize}, and are null if no canvas
+   * had been drawn to yet.
+   */
+  private static final class Snapshot {
+    final int frameWidth;
+    final int frameHeight;
+    final int sensorOrientation;
+    final long canvasSize;
+    final int count;
+    final float[] frameBoxes;
+    final float[] canvasBoxes;
+    final int[] colors;
+    final int[] classIds;
+    final String[] titles;
+    final float[] confidences;
+    final float[] debugFrameBoxes;
+    final float[] debugCanvasBoxes;
+    final float[] debugScores;
+
+    Snapshot(
+        final int frameWidth,
+        final int frameHeight,
+        final int sensorOrientation,
+        final long canvasSize,
+        final int count,
+        final float[] frameBoxes,
+        final float[] canvasBoxes,
+        final int[] colors,
+        final int[] classIds,
+        final String[] titles,
+        final float[] confidences,
+        final float[] debugFrameBoxes,
+        final float[] debugCanvasBoxes,
+        final float[] debugScores) {
+      this.frameWidth = frameWidth;
+      this.frameHeight = frameHeight;
+      this.sensorOrientation = sensorOrientation;
+      this.canvasSize = canvasSize;
+      this.count = count;
+      this.frameBoxes = frameBoxes;
+      this.canvasBoxes = canvasBoxes;
+      this.colors = colors;
+      this.classIds = classIds;
+      this.titles = titles;
+      this.confidences = confidences;
+      this.debugFrameBoxes = debugFrameBoxes;
+      this.debugCanvasBoxes = debugCanvasBoxes;
+      this.debugScores = debugScores;
     }
   }
 
   private static class TrackedRecognition {
+    // Identifier that stays with the object for as long as it is tracked.
+    int id;
+    KalmanBoxFilter filter;
     RectF location;
+    // Where optical flow measured the box in the frame being advanced to, from where it was before.
+    RectF flowSource;
+    RectF flowLocation;
+    boolean hasFlow;
+    // Where the box was in the frame of the detections being matched.
+    RectF pastLocation;
+    // The last TRACK_HISTORY frames the track was advanced to, in a ring ending at historyEnd: the
+    // filter state after each frame, and the flow measurement taken in it as its two boxes, if any.
+    final long[] historyTimestamps = new long[TRACK_HISTORY];
+    final float[] historyStates = new float[TRACK_HISTORY * KalmanBoxFilter.STATE_SIZE];
+    final float[] historyFlow = new float[TRACK_HISTORY * 8];
+    final boolean[] historyHasFlow = new boolean[TRACK_HISTORY];
+    int historyEnd;
+    int historyCount;
     float detectionConfidence;
     int color;
+    int classId;
     String title;
+    // Detections matched to the track, including the one that created it. Together with
+    // missedDetections, the rounds since the last match, this is the track's age as SORT keeps it.
+    int hits;
+    // Detection rounds in a row without a matching detection.
+    int missedDetections;
+    boolean matched;
+
+    /**
+     * Records the filter state for {@code timestamp}, along with the flow measurement taken in it.
+     * Recording the newest frame again only replaces its state.
+     */
+    void record(final long timestamp) {
+      int slot = historySlot(1);
+      if (historyCount == 0 || historyTimestamps[slot] != timestamp) {
+        slot = historyEnd;
+        historyEnd = (historyEnd + 1) % TRACK_HISTORY;
+        historyCount = Math.min(historyCount + 1, TRACK_HISTORY);
+        historyTimestamps[slot] = timestamp;
+        historyHasFlow[slot] = hasFlow;
+        if (hasFlow) {
+          setBox(historyFlow, slot * 8, flowSource);
+          setBox(historyFlow, slot * 8 + 4, flowLocation);
+        }
+      }
+      hasFlow = false;
+      filter.save(historyStates, slot * KalmanBoxFilter.STATE_SIZE);
+    }
+
+    /** Writes the box the track had in frame {@code timestamp} into {@code out}. */
+    void getHistoryBox(final long timestamp, final RectF out) {
+      if (historyCount == 0) {
+        out.set(location);
+        return;
+      }
+      final int slot = historySlot(findHistory(timestamp));
+      KalmanBoxFilter.getBox(historyStates, slot * KalmanBoxFilter.STATE_SIZE, out);
+    }
+
+    /**
+     * Corrects the track with a box detected in frame {@code timestamp}: rolls the filter back to
+     * that frame, updates it there, and replays the frames recorded since, predicting across each
+     * and moving the box by the flow measured in it. The history is rewritten with the corrected
+     * states, so a later detection rolls back to those.
+     */
+    void correct(final long timestamp, final RectF box, final RectF scratch) {
+      if (historyCount == 0) {
+        filter.update(box);
+        return;
+      }
+      int back = findHistory(timestamp);
+      int slot = historySlot(back);
+      filter.restore(historyStates, slot * KalmanBoxFilter.STATE_SIZE);
+      long time = historyTimestamps[slot];
+      if (timestamp > time) {
+        filter.predict(timestamp - time);
+        time = timestamp;
+      }
+      filter.update(box);
+      if (time == historyTimestamps[slot]) {
+        filter.save(historyStates, slot * KalmanBoxFilter.STATE_SIZE);
+      }
+
+      for (--back; back >= 1; --back) {
+        slot = historySlot(back);
+        filter.getBox(scratch);
+        filter.predict(historyTimestamps[slot] - time);
+        time = historyTimestamps[slot];
+        if (historyHasFlow[slot]) {
+          carryForward(historyFlow, slot * 8, slot * 8 + 4, scratch);
+          filter.update(scratch);
+        }
+        filter.save(historyStates, slot * KalmanBoxFilter.STATE_SIZE);
+      }
+    }
+
+    /**
+     * Returns how far back, from 1 for the newest, the newest recorded frame not after {@code
+     * timestamp} is, or the oldest one if the history does not reach back that far.
+     */
+    private int findHistory(final long timestamp) {
+      int back = 1;
+      while (back < historyCount && historyTimestamps[historySlot(back)] > timestamp) {
+        ++back;
+      }
+      return back;
+    }
+
+    private int historySlot(final int back) {
+      return (historyEnd + TRACK_HISTORY - back) % TRACK_HISTORY;
+    }
+  }
+
+  private static void setBox(final float[] boxes, final int offset, final RectF box) {
+    boxes[offset] = box.left;
+    boxes[offset + 1] = box.top;
+    boxes[offset + 2] = box.right;
+    boxes[offset + 3] = box.bottom;
+  }
+
+  /**
+   * Moves {@code box} the way the box at {@code from} in {@code boxes} moved to the one at {@code
+   * to}: by the shift of their centers, with offsets and size scaled by their ratio of sizes.
+   */
+  private static void carryForward(
+      final float[] boxes, final int from, final int to, final RectF box) {
+    final float fromWidth = boxes[from + 2] - boxes[from];
+    final float fromHeight = boxes[from + 3] - boxes[from + 1];
+    final float scaleX = fromWidth > 0.0f ? (boxes[to + 2] - boxes[to]) / fromWidth : 1.0f;
+    final float scaleY = fromHeight > 0.0f ? (boxes[to + 3] - boxes[to + 1]) / fromHeight : 1.0f;
+    final float shiftX = (boxes[to] + boxes[to + 2] - boxes[from] - boxes[from + 2]) * 0.5f;
+    final float shiftY = (boxes[to + 1] + boxes[to + 3] - boxes[from + 1] - boxes[from + 3]) * 0.5f;
+    final float fromCenterX = (boxes[from] + boxes[from + 2]) * 0.5f;
+    final float fromCenterY = (boxes[from + 1] + boxes[from + 3]) * 0.5f;
+    final float centerX = fromCenterX + shiftX + (box.centerX() - fromCenterX) * scaleX;
+    final float centerY = fromCenterY + shiftY + (box.centerY() - fromCenterY) * scaleY;
+    final float halfWidth = box.width() * scaleX * 0.5f;
+    final float halfHeight = box.height() * scaleY * 0.5f;
+    box.set(centerX - halfWidth, centerY - halfHeight, centerX + halfWidth, centerY + halfHeight);
   }
 }
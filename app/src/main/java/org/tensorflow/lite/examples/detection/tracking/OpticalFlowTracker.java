@@ -0,0 +1,405 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tracking;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pyramidal Lucas-Kanade optical flow on the luminance plane, in plain Java. Every camera frame is
+ * fed to {@link #nextFrame}, which box-filters it into an image pyramid; points are then followed
+ * from the previous frame to the current one with {@link #trackPoints}.
+ *
+ * <p>Each point is tracked coarse to fine: at every level the previous frame's window around the
+ * point gives the 2x2 structure tensor, and a few Newton steps solve for the displacement that
+ * best aligns the current frame's window with it. Points in flat regions, whose structure tensor
+ * has a small minimum eigenvalue, and points whose aligned windows still differ a lot, are
+ * reported as lost.
+ */
+public class OpticalFlowTracker {
+  // Newton steps stop once the update is smaller than this, in pixels of the level.
+  private static final float CONVERGENCE_EPSILON = 0.03f;
+
+  // Factor the luminance plane is box-filtered down by to form the finest level.
+  private final int baseScale;
+  private final int levels;
+  private final int windowRadius;
+  private final int iterations;
+  // Minimum eigenvalue of the structure tensor per window pixel for a point to be tracked.
+  private final float minEigenvalue;
+  // Maximum mean absolute difference, in luminance levels, between the aligned windows.
+  private final float maxResidual;
+
+  // Pyramids of the previous and current frame, finest level first.
+  private float[][] previous;
+  private float[][] current;
+  private int[] levelWidths;
+  private int[] levelHeights;
+  private int frameWidth;
+  private int frameHeight;
+  private boolean hasPrevious;
+
+  // Window scratch: previous frame samples with a one pixel border, and their gradients.
+  private final float[] template;
+  private final float[] gradientX;
+  private final float[] gradientY;
+  // Current frame samples of the window being aligned.
+  private final float[] window;
+
+  private long framesProcessed;
+  private long lastPyramidTimeNs;
+  private long totalPyramidTimeNs;
+  private long lastTrackTimeNs;
+  private long totalTrackTimeNs;
+  private int lastPointsTracked;
+  private int lastPointsLost;
+
+  /**
+   * @param baseScale Factor the luminance plane is box-filtered down by before tracking, at least 1
+   * @param levels Number of pyramid levels, at least 1
+   * @param windowRadius Half size of the square window compared around every point
+   * @param iterations Maximum number of Newton steps per level
+   * @param minEigenvalue Points with a weaker structure tensor, per window pixel, are lost
+   * @param maxResidual Points whose aligned windows differ by more than this on average are lost
+   */
+  public OpticalFlowTracker(
+      final int baseScale,
+      final int levels,
+      final int windowRadius,
+      final int iterations,
+      final float minEigenvalue,
+      final float maxResidual) {
+    this.baseScale = Math.max(1, baseScale);
+    this.levels = Math.max(1, levels);
+    this.windowRadius = Math.max(1, windowRadius);
+    this.iterations = Math.max(1, iterations);
+    this.minEigenvalue = minEigenvalue;
+    this.maxResidual = maxResidual;
+    final int templateSize = 2 * this.windowRadius + 3;
+    template = new float[templateSize * templateSize];
+    final int windowSize = 2 * this.windowRadius + 1;
+    gradientX = new float[windowSize * windowSize];
+    gradientY = new float[windowSize * windowSize];
+    window = new float[windowSize * windowSize];
+  }
+
+  /**
+   * Builds the pyramid of a new frame, which becomes the frame points are tracked to. The frame
+   * fed before it becomes the one they are tracked from. The luminance plane is read with absolute
+   * gets, so it can be the camera's own buffer and is never copied.
+   */
+  public synchronized void nextFrame(
+      final ByteBuffer luminance, final int width, final int height, final int rowStride) {
+    final long startTime = System.nanoTime();
+    if (width != frameWidth || height != frameHeight || current == null) {
+      allocate(width, height);
+    } else {
+      final float[][] swap = previous;
+      previous = current;
+      current = swap;
+      hasPrevious = true;
+    }
+
+    final int baseWidth = levelWidths[0];
+    final int baseHeight = levelHeights[0];
+    final float[] base = current[0];
+    final float norm = 1.0f / (baseScale * baseScale);
+    for (int y = 0; y < baseHeight; ++y) {
+      for (int x = 0; x < baseWidth; ++x) {
+        int sum = 0;
+        for (int dy = 0; dy < baseScale; ++dy) {
+          int p = (y * baseScale + dy) * rowStride + x * baseScale;
+          for (int dx = 0; dx < baseScale; ++dx) {
+            sum += luminance.get(p++) & 0xff;
+          }
+        }
+        base[y * baseWidth + x] = sum * norm;
+      }
+    }
+    for (int level = 1; level < levels; ++level) {
+      halve(
+          current[level - 1],
+          levelWidths[level - 1],
+          current[level],
+          levelWidths[level],
+          levelHeights[level]);
+    }
+
+    lastPyramidTimeNs = System.nanoTime() - startTime;
+    totalPyramidTimeNs += lastPyramidTimeNs;
+    ++framesProcessed;
+    lastTrackTimeNs = 0;
+    lastPointsTracked = 0;
+    lastPointsLost = 0;
+  }
+
+  /** Returns true once two frames have been fed, so that points can be tracked. */
+  public synchronized boolean isReady() {
+    return hasPrevious;
+  }
+
+  /**
+   * Tracks points from the previous frame to the current one, in full luminance plane pixels.
+   *
+   * @param points Interleaved x and y of every point; overwritten with the tracked positions
+   * @param count Number of points
+   * @param tracked Receives whether each point was tracked; lost points keep their position
+   * @return The number of points tracked
+   */
+  public synchronized int trackPoints(
+      final float[] points, final int count, final boolean[] tracked) {
+    final long startTime = System.nanoTime();
+    int numTracked = 0;
+    for (int i = 0; i < count; ++i) {
+      tracked[i] = hasPrevious && trackPoint(points, 2 * i);
+      if (tracked[i]) {
+        ++numTracked;
+      }
+    }
+    final long elapsed = System.nanoTime() - startTime;
+    lastTrackTimeNs += elapsed;
+    totalTrackTimeNs += elapsed;
+    lastPointsTracked += numTracked;
+    lastPointsLost += count - numTracked;
+    return numTracked;
+  }
+
+  private boolean trackPoint(final float[] points, final int offset) {
+    final float x = points[offset] / baseScale;
+    final float y = points[offset + 1] / baseScale;
+    final int windowSize = 2 * windowRadius + 1;
+    final int templateSize = windowSize + 2;
+    final int windowArea = windowSize * windowSize;
+
+    // Displacement carried over from the coarser levels, in pixels of the current level.
+    float guessX = 0.0f;
+    float guessY = 0.0f;
+    for (int level = levels - 1; level >= 0; --level) {
+      final float levelScale = 1.0f / (1 << level);
+      final float px = x * levelScale;
+      final float py = y * levelScale;
+      final float[] prev = previous[level];
+      final float[] curr = current[level];
+      final int width = levelWidths[level];
+      final int height = levelHeights[level];
+
+      // Previous frame window with a border, and its gradients and structure tensor.
+      final float templateX = px - windowRadius - 1;
+      final float templateY = py - windowRadius - 1;
+      sampleWindow(prev, width, height, templateX, templateY, templateSize, template);
+      float gxx = 0.0f;
+      float gxy = 0.0f;
+      float gyy = 0.0f;
+      for (int j = 0, w = 0; j < windowSize; ++j) {
+        for (int i = 0, t = (j + 1) * templateSize + 1; i < windowSize; ++i, ++w, ++t) {
+          final float ix = (template[t + 1] - template[t - 1]) * 0.5f;
+          final float iy = (template[t + templateSize] - template[t - templateSize]) * 0.5f;
+          gradientX[w] = ix;
+          gradientY[w] = iy;
+          gxx += ix * ix;
+          gxy += ix * iy;
+          gyy += iy * iy;
+        }
+      }
+      final float trace = gxx + gyy;
+      final float minEig =
+          0.5f * (trace - (float) Math.sqrt((gxx - gyy) * (gxx - gyy) + 4.0f * gxy * gxy));
+      if (minEig / windowArea < minEigenvalue) {
+        return false;
+      }
+      final float det = gxx * gyy - gxy * gxy;
+
+      float vx = 0.0f;
+      float vy = 0.0f;
+      for (int iteration = 0; iteration < iterations; ++iteration) {
+        final float cx = px + guessX + vx;
+        final float cy = py + guessY + vy;
+        if (cx < 0.0f || cy < 0.0f || cx > width - 1 || cy > height - 1) {
+          return false;
+        }
+        sampleWindow(curr, width, height, cx - windowRadius, cy - windowRadius, windowSize, window);
+        float bx = 0.0f;
+        float by = 0.0f;
+        for (int j = 0, w = 0; j < windowSize; ++j) {
+          for (int i = 0, t = (j + 1) * templateSize + 1; i < windowSize; ++i, ++w, ++t) {
+            final float difference = template[t] - window[w];
+            bx += difference * gradientX[w];
+            by += difference * gradientY[w];
+          }
+        }
+        final float dx = (gyy * bx - gxy * by) / det;
+        final float dy = (gxx * by - gxy * bx) / det;
+        vx += dx;
+        vy += dy;
+        if (dx * dx + dy * dy < CONVERGENCE_EPSILON * CONVERGENCE_EPSILON) {
+          break;
+        }
+      }
+
+      guessX += vx;
+      guessY += vy;
+      if (level > 0) {
+        guessX *= 2.0f;
+        guessY *= 2.0f;
+      }
+    }
+
+    final float newX = x + guessX;
+    final float newY = y + guessY;
+    final int baseWidth = levelWidths[0];
+    final int baseHeight = levelHeights[0];
+    if (newX < 0.0f || newY < 0.0f || newX > baseWidth - 1 || newY > baseHeight - 1) {
+      return false;
+    }
+    if (residual(x, y, newX, newY) > maxResidual) {
+      return false;
+    }
+    points[offset] = newX * baseScale;
+    points[offset + 1] = newY * baseScale;
+    return true;
+  }
+
+  /** Mean absolute difference between the finest level windows around the two positions. */
+  private float residual(final float x, final float y, final float newX, final float newY) {
+    final int width = levelWidths[0];
+    final int height = levelHeights[0];
+    final int windowSize = 2 * windowRadius + 1;
+    sampleWindow(
+        previous[0], width, height, x - windowRadius, y - windowRadius, windowSize, template);
+    sampleWindow(
+        current[0], width, height, newX - windowRadius, newY - windowRadius, windowSize, window);
+    float sum = 0.0f;
+    for (int w = 0; w < windowSize * windowSize; ++w) {
+      sum += Math.abs(template[w] - window[w]);
+    }
+    return sum / (windowSize * windowSize);
+  }
+
+  /**
+   * Bilinearly samples a size x size window with its top left corner at (x, y). All samples share
+   * the same fractional offset, so windows inside the image use one set of weights throughout;
+   * only windows crossing the edge fall back to clamped per-sample lookups.
+   */
+  private static void sampleWindow(
+      final float[] image,
+      final int width,
+      final int height,
+      final float x,
+      final float y,
+      final int size,
+      final float[] out) {
+    final int x0 = (int) Math.floor(x);
+    final int y0 = (int) Math.floor(y);
+    if (x0 < 0 || y0 < 0 || x0 + size >= width || y0 + size >= height) {
+      for (int j = 0, o = 0; j < size; ++j) {
+        for (int i = 0; i < size; ++i, ++o) {
+          out[o] = sample(image, width, height, x + i, y + j);
+        }
+      }
+      return;
+    }
+    final float fx = x - x0;
+    final float fy = y - y0;
+    final float w00 = (1.0f - fx) * (1.0f - fy);
+    final float w01 = fx * (1.0f - fy);
+    final float w10 = (1.0f - fx) * fy;
+    final float w11 = fx * fy;
+    for (int j = 0, o = 0; j < size; ++j) {
+      int p = (y0 + j) * width + x0;
+      for (int i = 0; i < size; ++i, ++o, ++p) {
+        out[o] =
+            w00 * image[p]
+                + w01 * image[p + 1]
+                + w10 * image[p + width]
+                + w11 * image[p + width + 1];
+      }
+    }
+  }
+
+  /** Bilinearly samples an image, clamping coordinates to its edges. */
+  private static float sample(
+      final float[] image, final int width, final int height, float x, float y) {
+    x = Math.max(0.0f, Math.min(width - 1.0f, x));
+    y = Math.max(0.0f, Math.min(height - 1.0f, y));
+    final int x0 = (int) x;
+    final int y0 = (int) y;
+    final int x1 = Math.min(x0 + 1, width - 1);
+    final int y1 = Math.min(y0 + 1, height - 1);
+    final float fx = x - x0;
+    final float fy = y - y0;
+    final int row0 = y0 * width;
+    final int row1 = y1 * width;
+    final float top = image[row0 + x0] + fx * (image[row0 + x1] - image[row0 + x0]);
+    final float bottom = image[row1 + x0] + fx * (image[row1 + x1] - image[row1 + x0]);
+    return top + fy * (bottom - top);
+  }
+
+  /** Averages 2x2 blocks of src into dst. */
+  private static void halve(
+      final float[] src, final int srcWidth, final float[] dst, final int width, final int height) {
+    for (int y = 0; y < height; ++y) {
+      int s = 2 * y * srcWidth;
+      int d = y * width;
+      for (int x = 0; x < width; ++x, s += 2, ++d) {
+        dst[d] = 0.25f * (src[s] + src[s + 1] + src[s + srcWidth] + src[s + srcWidth + 1]);
+      }
+    }
+  }
+
+  private void allocate(final int width, final int height) {
+    frameWidth = width;
+    frameHeight = height;
+    levelWidths = new int[levels];
+    levelHeights = new int[levels];
+    previous = new float[levels][];
+    current = new float[levels][];
+    int levelWidth = width / baseScale;
+    int levelHeight = height / baseScale;
+    for (int level = 0; level < levels; ++level) {
+      levelWidths[level] = Math.max(1, levelWidth);
+      levelHeights[level] = Math.max(1, levelHeight);
+      previous[level] = new float[levelWidths[level] * levelHeights[level]];
+      current[level] = new float[levelWidths[level] * levelHeights[level]];
+      levelWidth /= 2;
+      levelHeight /= 2;
+    }
+    hasPrevious = false;
+  }
+
+  /** Returns how long building the last frame's pyramid took, in nanoseconds. */
+  public synchronized long getLastPyramidTimeNs() {
+    return lastPyramidTimeNs;
+  }
+
+  /** Returns how long tracking points to the last frame took, in nanoseconds. */
+  public synchronized long getLastTrackTimeNs() {
+    return lastTrackTimeNs;
+  }
+
+  /** Returns the mean time per frame spent building pyramids and tracking, in nanoseconds. */
+  public synchronized long getAverageFrameTimeNs() {
+    return framesProcessed > 0 ? (totalPyramidTimeNs + totalTrackTimeNs) / framesProcessed : 0;
+  }
+
+  public synchronized String getStatString() {
+    return String.format(
+        "Optical flow: %d/%d points tracked, pyramid %dus, tracking %dus (avg frame %dus)",
+        lastPointsTracked,
+        lastPointsTracked + lastPointsLost,
+        lastPyramidTimeNs / 1000,
+        lastTrackTimeNs / 1000,
+        getAverageFrameTimeNs() / 1000);
+  }
+}
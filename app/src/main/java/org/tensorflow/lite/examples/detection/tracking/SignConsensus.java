@@ -0,0 +1,167 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tracking;
+
+/**
+ * Temporal voting over the class of every tracked object, so that a single flickering
+ * misclassification does not count as a sign. Every detection round, each track votes for the
+ * class it was detected as, or abstains if it went undetected. A track's class is confirmed once
+ * it holds at least votesRequired of the track's last windowSize votes, and is then kept until a
+ * different class reaches the same majority, which gives the decision hysteresis. Listeners hear
+ * about every confirmation, once.
+ */
+public class SignConsensus {
+  /** Receives confirmed signs, on the thread that calls {@link #update}. */
+  public interface Listener {
+    void onSignConfirmed(int trackId, int classId, float confidence);
+  }
+
+  // Vote of a track that went undetected in a round.
+  private static final int ABSTAIN = -1;
+
+  private final int votesRequired;
+  private final int windowSize;
+  private final Listener listener;
+
+  // Per-track state, one slot per track; a slot is free when its track id is -1.
+  private final int[] trackIds;
+  // Ring buffers of the last windowSize votes of every slot, slot after slot.
+  private final int[] votes;
+  private final int[] voteHeads;
+  private final int[] confirmedClassIds;
+  // Rounds in a row the slot's track has not been seen in.
+  private final int[] idleRounds;
+  private final boolean[] seen;
+
+  /**
+   * @param maxTracks Maximum number of tracks voted on at once
+   * @param votesRequired Votes for one class needed to confirm it, the N of N-of-M
+   * @param windowSize Number of recent votes considered, the M of N-of-M
+   * @param listener Receives confirmed signs
+   */
+  public SignConsensus(
+      final int maxTracks, final int votesRequired, final int windowSize, final Listener listener) {
+    this.votesRequired = Math.max(1, votesRequired);
+    this.windowSize = Math.max(this.votesRequired, windowSize);
+    this.listener = listener;
+    trackIds = new int[maxTracks];
+    votes = new int[maxTracks * this.windowSize];
+    voteHeads = new int[maxTracks];
+    confirmedClassIds = new int[maxTracks];
+    idleRounds = new int[maxTracks];
+    seen = new boolean[maxTracks];
+    for (int slot = 0; slot < maxTracks; ++slot) {
+      free(slot);
+    }
+  }
+
+  /**
+   * Casts one detection round's votes: the tracks detected in it, with the class and confidence
+   * each was detected with. Tracks not listed abstain.
+   */
+  public synchronized void update(
+      final int[] roundTrackIds, final int[] roundClassIds, final float[] scores, final int count) {
+    for (int slot = 0; slot < trackIds.length; ++slot) {
+      seen[slot] = false;
+    }
+
+    for (int i = 0; i < count; ++i) {
+      final int slot = findSlot(roundTrackIds[i]);
+      if (slot < 0) {
+        continue;
+      }
+      seen[slot] = true;
+      idleRounds[slot] = 0;
+      final int classId = roundClassIds[i];
+      vote(slot, classId);
+
+      if (classId != confirmedClassIds[slot] && countVotes(slot, classId) >= votesRequired) {
+        confirmedClassIds[slot] = classId;
+        listener.onSignConfirmed(roundTrackIds[i], classId, scores[i]);
+      }
+    }
+
+    for (int slot = 0; slot < trackIds.length; ++slot) {
+      if (trackIds[slot] >= 0 && !seen[slot]) {
+        vote(slot, ABSTAIN);
+        // A track idle for a whole window has no votes left and is forgotten, in case it was
+        // never passed to remove().
+        if (++idleRounds[slot] >= windowSize) {
+          free(slot);
+        }
+      }
+    }
+  }
+
+  /** Forgets a track that is no longer tracked, freeing its slot for a new one. */
+  public synchronized void remove(final int trackId) {
+    for (int slot = 0; slot < trackIds.length; ++slot) {
+      if (trackIds[slot] == trackId) {
+        free(slot);
+        return;
+      }
+    }
+  }
+
+  /** Forgets all tracks. */
+  public synchronized void reset() {
+    for (int slot = 0; slot < trackIds.length; ++slot) {
+      free(slot);
+    }
+  }
+
+  /** Returns the slot of a track, claiming a free one for a new track, or -1 if all are taken. */
+  private int findSlot(final int trackId) {
+    int freeSlot = -1;
+    for (int slot = 0; slot < trackIds.length; ++slot) {
+      if (trackIds[slot] == trackId) {
+        return slot;
+      }
+      if (freeSlot < 0 && trackIds[slot] < 0) {
+        freeSlot = slot;
+      }
+    }
+    if (freeSlot >= 0) {
+      trackIds[freeSlot] = trackId;
+    }
+    return freeSlot;
+  }
+
+  private void vote(final int slot, final int classId) {
+    votes[slot * windowSize + voteHeads[slot]] = classId;
+    voteHeads[slot] = (voteHeads[slot] + 1) % windowSize;
+  }
+
+  private int countVotes(final int slot, final int classId) {
+    int count = 0;
+    for (int i = slot * windowSize, end = i + windowSize; i < end; ++i) {
+      if (votes[i] == classId) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  private void free(final int slot) {
+    trackIds[slot] = -1;
+    voteHeads[slot] = 0;
+    confirmedClassIds[slot] = ABSTAIN;
+    idleRounds[slot] = 0;
+    for (int i = slot * windowSize, end = i + windowSize; i < end; ++i) {
+      votes[i] = ABSTAIN;
+    }
+  }
+}